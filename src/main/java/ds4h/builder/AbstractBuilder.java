@@ -102,6 +102,13 @@ public abstract class AbstractBuilder<T> implements AlignBuilder {
         this.getLoadingDialog().hideDialog();
     }
 
+    /**
+     * Nothing to release by default, the builders holding native memory override it
+     */
+    @Override
+    public void dispose() {
+    }
+
     protected void addToVirtualStack(ImagePlus img) {
         String path = IJ.getDir(TEMP_PATH) + img.getProcessor().hashCode() + TIFF_EXT;
         new FileSaver(img).saveAsTiff(path);
@@ -20,6 +20,11 @@ public interface AlignBuilder {
 
     void build();
 
+    /**
+     * Releases what the builder holds once the run is over, built or not: after this, the images can't be rendered again
+     */
+    void dispose();
+
     AlignDialog getAlignDialog();
 
     List<String> getTempImages();
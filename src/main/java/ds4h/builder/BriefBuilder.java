@@ -9,33 +9,55 @@
 
 package ds4h.builder;
 
+import ds4h.builder.feature.CoarseToFine;
+import ds4h.builder.feature.EccRefinement;
+import ds4h.builder.feature.FeatureContext;
+import ds4h.builder.feature.FeatureStore;
+import ds4h.builder.feature.FeatureStrategy;
+import ds4h.builder.feature.MotionModel;
+import ds4h.builder.feature.NativeScope;
+import ds4h.builder.feature.PhaseCorrelation;
+import ds4h.builder.feature.Features;
+import ds4h.builder.feature.ReferenceMatcher;
+import ds4h.builder.feature.RobustEstimator;
+import ds4h.builder.feature.TiledFeatureExtractor;
 import ds4h.dialog.align.OnAlignDialogEventListener;
+import ds4h.dialog.align.setting.AutoAlignSettingDialog;
+import ds4h.dialog.align.setting.AutoAlignSettingEvent;
 import ds4h.dialog.loading.LoadingDialog;
 import ds4h.dialog.main.event.AutoAlignEvent;
 import ds4h.image.model.manager.ImageFile;
+import ds4h.services.FeatureCacheService;
 import ds4h.image.model.manager.ImagesEditor;
+import ds4h.image.model.manager.slide.SlideImage;
+import ds4h.image.model.manager.slide.TiledSlideImage;
+import ds4h.utils.NativeMemoryMonitor;
 import ds4h.utils.Pair;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.VirtualStack;
 import ij.plugin.RGBStackMerge;
 import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
-import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Point;
 import org.opencv.core.*;
-import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.xfeatures2d.BriefDescriptorExtractor;
-import org.opencv.xfeatures2d.StarDetector;
 
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
 import java.awt.*;
 import java.awt.image.ColorModel;
+import java.lang.reflect.InvocationTargetException;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import static java.lang.Math.abs;
-import static org.opencv.core.CvType.CV_8U;
+import static org.opencv.core.CvType.CV_64F;
 import static org.opencv.core.CvType.CV_8UC1;
 import static org.opencv.imgcodecs.Imgcodecs.*;
 
@@ -43,30 +65,55 @@ import static org.opencv.imgcodecs.Imgcodecs.*;
  * BriefBuilder is a class implementing the automatic alignment functionality extending abstract builder
  *
  * This plugin is made as a non-profit utility
- * It uses XFeatures2d features like BriefDescriptorExtractor and StartDetector
+ * It uses XFeatures2d features like BriefDescriptorExtractor and StartDetector by default, or the other detectors of FeatureStrategy
  * Given that is used in the medical research field and no kind of profit is made from this
  * There isn't any break of the copyright law.
  * For any issues the owners of the algorithms see fit, post an issue here :
  * https://github.com/Edodums/DS4H-Image-Alignment/issues
  */
 public class BriefBuilder extends AbstractBuilder<Mat> {
+    // the features are found on the first level of the pyramid whose longest side is at most this, 0 to use the full resolution
+    private static final String COARSE_SIZE_KEY = "ds4h.autoalign.coarseSize";
+    private static final int DEFAULT_COARSE_SIZE = 4096;
+    private static final String REFINEMENT_KEY = "ds4h.autoalign.refine";
+    private static final boolean DEFAULT_REFINEMENT = true;
+    // how far, in coarse pixels, the refinement looks for a match around the position predicted by the coarse homography
+    private static final int REFINEMENT_SEARCH_RADIUS = 2;
+    // the reprojection threshold of the estimator, as a share of the longest side of the images the features are found on
+    private static final String RELATIVE_THRESHOLD_KEY = "ds4h.autoalign.threshold";
+    private static final double DEFAULT_RELATIVE_THRESHOLD = 0.001;
+    // below a pixel the estimator rejects the inliers because of the keypoints localization error alone
+    private static final double MINIMUM_THRESHOLD = 1.0;
     private final List<Mat> images = new ArrayList<>();
     private List<List<Mat>> imagesSplit = new ArrayList<List<Mat>>();
-    private final Map<Long, String> pathMap = new HashMap<>();
-    private final Map<Pair<Integer, Integer>, Pair<List<Point>, List<Point>>> mapOfPoints = new HashMap<>();
-    private final List<Mat> transformedImages = new ArrayList<>();
+    // the planes too big for a single Mat: the images hold their overviews, the features are found by tiles
+    private final Map<Integer, TiledSlideImage> tiledImages = new HashMap<>();
+    // filled by the workers of the estimation phase
+    private final Map<Pair<Integer, Integer>, Pair<List<Point>, List<Point>>> mapOfPoints = new ConcurrentHashMap<>();
+    // indexed like the images, null when the image couldn't be matched with the source one
+    private final List<TransformRecord> transformRecords = new ArrayList<>();
+    private final FeatureStore featureStore = new FeatureStore(this::extractFeatures);
+    // built once on the features of the source image, queried by every pair
+    private ReferenceMatcher referenceMatcher;
+    // the detectors and the matchers of the run, created after the settings are chosen
+    private FeatureContext featureContext;
     private boolean canGo = true;
+    private int pyramidLevels = 0;
+    private double reprojectionThreshold = MINIMUM_THRESHOLD;
+    private final boolean refinement = Prefs.get(REFINEMENT_KEY, DEFAULT_REFINEMENT);
 
     // TOCHECK, TOBETESTED
-    private List<Integer> horizShifts = new ArrayList<>();
-    private List<Integer> verticShifts = new ArrayList<>();
-    private boolean alignCalled = false;
     private int maxXshift = 0;
     private int maxYshift = 0;
-    private List<Integer> imagesShiftList = new ArrayList<>();
+
+    private final AutoAlignEvent autoAlignEvent;
+    private final NativeMemoryMonitor nativeMemoryMonitor = new NativeMemoryMonitor();
+    // the resources are released only once, and only if the run got to import the images
+    private boolean nativeMemoryMonitorStarted = false;
 
     public BriefBuilder(LoadingDialog loadingDialog, ImagesEditor editor, AutoAlignEvent event, OnAlignDialogEventListener listener) {
         super(loadingDialog, listener, editor, event);
+        this.autoAlignEvent = event;
     }
 
     /**
@@ -74,32 +121,55 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
      */
     @Override
     public void init() {
+        if (!this.isShowSettingDialogSuccessful()) {
+            canGo = false;
+            return;
+        }
+        this.nativeMemoryMonitor.start();
+        this.nativeMemoryMonitorStarted = true;
+        this.featureContext = new FeatureContext(this.getFeatureStrategy());
         this.importImages();
-        this.setImagesDimensions(this.getEditor().getImagesDimensions());
+        // the tiled planes are rendered from their overviews, so the stack is sized on the images actually loaded
+        this.setImagesDimensions(this.getImages().stream().map(image -> new Dimension(image.cols(), image.rows())).collect(Collectors.toList()));
         //empty Dimension, this """setMaximumSize""" simply checks if the current maximumSize needs to be updated
         this.setMaximumSize(new Dimension());
         this.setFinalStackDimension(new Dimension(this.getMaximumSize().width, this.getMaximumSize().height));
-        this.cacheTransformedImages();
-        if (this.getTransformedImages().isEmpty()) {
+        final int coarseSize = (int) Prefs.get(COARSE_SIZE_KEY, DEFAULT_COARSE_SIZE);
+        // the levels are counted on the Mats that are actually matched, the overviews for the tiled planes
+        this.pyramidLevels = coarseSize > 0 ? CoarseToFine.getLevels(this.getMaximumSize(), coarseSize) : 0;
+        final double levelSide = Math.max(this.getMaximumSize().width, this.getMaximumSize().height) / CoarseToFine.getScale(this.getPyramidLevels());
+        this.reprojectionThreshold = Math.max(MINIMUM_THRESHOLD, Prefs.get(RELATIVE_THRESHOLD_KEY, DEFAULT_RELATIVE_THRESHOLD) * levelSide);
+        this.estimateTransforms();
+        if (this.getTransformRecords().stream().allMatch(Objects::isNull)) {
             canGo = false;
             IJ.showMessage("Not enough matches");
             return;
         }
         this.setOffsets();
-        //this.findContoursOfTransformedImages();
         this.checkFinalStackDimension();
         this.setFinalStackToVirtualStack();
         this.addFinalStackToVirtualStack();
-        alignCalled = false;
     }
 
-/*    // this function is probably useless now, the virtualstack dimension are set in alignKeepOriginal
-    private void findContoursOfTransformedImages() {
-        System.out.println("CALL findContoursOfTransformedImages");
-        System.out.println("Max offsets in findContoursOfTransformedImages are: " + getMaxXshift() + " " + getMaxYshift());
-        this.getFinalStackDimension().width = this.getFinalStackDimension().width + (int) this.getMaxXshift();
-        this.getFinalStackDimension().height = this.getFinalStackDimension().height + (int) this.getMaxYshift();
-    }*/
+    /**
+     * @return if it's "successful" if it wasn't closed via X button
+     */
+    private boolean isShowSettingDialogSuccessful() {
+        JFrame frame = new JFrame();
+        frame.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        final boolean[] isSuccessful = {true};
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                final AutoAlignSettingDialog settingDialog = new AutoAlignSettingDialog(frame, "Auto Align Settings", true, this.autoAlignEvent.getSettings());
+                settingDialog.getOkButton().addActionListener(e -> settingDialog.dispose());
+                isSuccessful[0] = settingDialog.initIsSuccessFul();
+            });
+        } catch (InterruptedException | InvocationTargetException e) {
+            IJ.showMessage("Something is not right, sorry, contact the Developer");
+            isSuccessful[0] = false;
+        }
+        return isSuccessful[0];
+    }
 
     @Override
     protected ImageProcessor getFinalStackImageProcessor() {
@@ -110,16 +180,147 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
     }
 
     /**
-     * for each image calls beforehand transformImage(), to achieve information about the images position and shifts
+     * Estimation phase: detection, matching and homography of every image against the source one, done only once.
+     * The render phase ( align or alignKeepOriginal ) only warps the images using the resulting records.
      */
-    private void cacheTransformedImages() {
-        for (int index = 0; index < this.getImages().size(); index++) {
-            Mat transformedImage = this.transformImage(index);
-            if (transformedImage == null) {
+    private void estimateTransforms() {
+        if (this.autoAlignEvent.getSettings().getRegistrationMode() == RegistrationMode.PHASE_CORRELATION) {
+            this.getTransformRecords().addAll(SliceWorkers.map(0, this.getImages().size(), this::estimateShift));
+            return;
+        }
+        if (this.autoAlignEvent.getSettings().getRegistrationMode() == RegistrationMode.CHAINED) {
+            this.estimateChainedTransforms();
+            this.getFeatureStore().clear();
+            return;
+        }
+        // the source features and their index are needed by every pair, they're built before starting the workers
+        final Features sourceFeatures = this.getFeatureStore().get(this.getSourceImageIndex(), this.getSourceImage());
+        this.referenceMatcher = new ReferenceMatcher(this.getFeatureContext(), this.autoAlignEvent.getSettings().getMatcherType(), sourceFeatures);
+        this.getTransformRecords().addAll(SliceWorkers.map(0, this.getImages().size(), this::estimateTransform));
+        // the render phase needs only the homographies
+        this.referenceMatcher.release();
+        this.getFeatureStore().clear();
+    }
+
+    /**
+     * Chained mode: every slice is registered to its neighbour, so the cost of a pair doesn't grow with the distance from the source,
+     * then the transformations are composed along the chain back to the source.
+     * Where the chain is broken, the slice is registered directly to the source and the chain goes on from there.
+     */
+    private void estimateChainedTransforms() {
+        final int size = this.getImages().size();
+        final int sourceIndex = this.getSourceImageIndex();
+        final boolean globalRefinement = this.autoAlignEvent.getSettings().isGlobalRefinement();
+        // the pairs two slices apart close the loops the global refinement needs, without them it would give back the chain
+        final List<int[]> pairIndices = new ArrayList<>();
+        for (int distance = 1; distance <= (globalRefinement ? 2 : 1); distance++) {
+            for (int index = 0; index + distance < size; index++) {
+                pairIndices.add(new int[]{index, index + distance});
+            }
+        }
+        final List<PairwiseMatch> pairs = SliceWorkers.map(0, pairIndices.size(), pair -> this.estimatePair(pairIndices.get(pair)[0], pairIndices.get(pair)[1]));
+        final PairwiseMatch[] links = new PairwiseMatch[size];
+        pairs.stream().filter(Objects::nonNull).filter(pair -> pair.getIndex() == pair.getReferenceIndex() + 1).forEach(pair -> links[pair.getReferenceIndex()] = pair);
+        final Mat[] homographies = new Mat[size];
+        final int[] matches = new int[size];
+        final int[] inliers = new int[size];
+        homographies[sourceIndex] = Mat.eye(3, 3, CV_64F);
+        // after the source: H(i) = L(i - 1 -> i) * H(i - 1)
+        for (int index = sourceIndex + 1; index < size; index++) {
+            final PairwiseMatch link = links[index - 1];
+            if (link != null && homographies[index - 1] != null) {
+                homographies[index] = this.compose(link.getHomography(), homographies[index - 1]);
+                matches[index] = link.getMatches();
+                inliers[index] = link.getInliers();
+            } else {
+                this.bridge(index, homographies, matches, inliers);
+            }
+        }
+        // before the source: H(i) = L(i -> i + 1)^-1 * H(i + 1)
+        for (int index = sourceIndex - 1; index >= 0; index--) {
+            final PairwiseMatch link = links[index];
+            if (link != null && homographies[index + 1] != null) {
+                final Mat inverseLink = link.getHomography().inv();
+                homographies[index] = this.compose(inverseLink, homographies[index + 1]);
+                inverseLink.release();
+                matches[index] = link.getMatches();
+                inliers[index] = link.getInliers();
+            } else {
+                this.bridge(index, homographies, matches, inliers);
+            }
+        }
+        if (globalRefinement) {
+            ChainAdjustment.refine(homographies, pairs, sourceIndex, Math.max(this.getMaximumSize().width, this.getMaximumSize().height));
+        }
+        pairs.stream().filter(Objects::nonNull).forEach(PairwiseMatch::release);
+        // the points of the pairs are not related to the source, the offsets need only the source ones
+        this.getMapOfPoints().clear();
+        final Point sourceCenter = new Point(this.getSourceImage().width() / 2.0, this.getSourceImage().height() / 2.0);
+        for (int index = 0; index < size; index++) {
+            if (homographies[index] == null) {
+                this.getTransformRecords().add(null);
                 continue;
             }
-            this.getTransformedImages().add(transformedImage);
+            this.getTransformRecords().add(new TransformRecord(index, homographies[index], matches[index], inliers[index]));
+            // the offsets only need a point of the source and where it ends up in the slice
+            final MatOfPoint2f center = new MatOfPoint2f(sourceCenter);
+            final MatOfPoint2f sliceCenter = new MatOfPoint2f();
+            Core.perspectiveTransform(center, sliceCenter, homographies[index]);
+            this.getMapOfPoints().put(new Pair<>(sourceIndex, index), new Pair<>(center.toList(), sliceCenter.toList()));
+        }
+    }
+
+    /**
+     * Phase correlation mode: the transformation of an image is only its shift relative to the source one
+     * @param transformedImageIndex the index of the image to be aligned
+     * @return the translation of the image, null if it couldn't be related to the source one
+     */
+    private TransformRecord estimateShift(int transformedImageIndex) {
+        Point shift = transformedImageIndex == this.getSourceImageIndex() ? new Point(0, 0)
+                : PhaseCorrelation.estimateShift(this.getSourceImage(), this.getImages().get(transformedImageIndex), this.refinement);
+        if (shift == null && this.autoAlignEvent.getSettings().isEccRefinement()) {
+            final Mat eccTranslation = EccRefinement.refine(this.getSourceImage(), this.getImages().get(transformedImageIndex), null, MotionModel.TRANSLATION);
+            if (eccTranslation != null) {
+                shift = new Point(eccTranslation.get(0, 2)[0], eccTranslation.get(1, 2)[0]);
+                eccTranslation.release();
+            }
+        }
+        if (shift == null) {
+            IJ.log(String.format("Auto align %d -> %d: no correlation peak", this.getSourceImageIndex(), transformedImageIndex));
+            return null;
+        }
+        final Mat translation = Mat.eye(3, 3, CV_64F);
+        translation.put(0, 2, shift.x);
+        translation.put(1, 2, shift.y);
+        // the offsets of the stack are found from a point of the source and the same point in the slice
+        final Point sourceCenter = new Point(this.getSourceImage().width() / 2.0, this.getSourceImage().height() / 2.0);
+        this.getMapOfPoints().put(new Pair<>(this.getSourceImageIndex(), transformedImageIndex),
+                new Pair<>(Collections.singletonList(sourceCenter), Collections.singletonList(new Point(sourceCenter.x + shift.x, sourceCenter.y + shift.y))));
+        return new TransformRecord(transformedImageIndex, translation, 0, 0);
+    }
+
+    /**
+     * Registers a slice, whose link to the chain is broken, directly to the source
+     */
+    private void bridge(int index, Mat[] homographies, int[] matches, int[] inliers) {
+        final PairwiseMatch direct = this.estimatePair(this.getSourceImageIndex(), index);
+        if (direct != null) {
+            homographies[index] = direct.getHomography();
+            matches[index] = direct.getMatches();
+            inliers[index] = direct.getInliers();
+        }
+    }
+
+    /**
+     * @return first * second, normalized so that the last element is 1
+     */
+    private Mat compose(Mat first, Mat second) {
+        final Mat composition = new Mat();
+        try (NativeScope scope = new NativeScope()) {
+            Core.gemm(first, second, 1, scope.add(new Mat()), 0, composition);
         }
+        Core.divide(composition, new Scalar(composition.get(2, 2)[0]), composition);
+        return composition;
     }
 
     @Override
@@ -133,30 +334,14 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
      */
     @Override
     public void alignKeepOriginal() {
-        // alignCalled is needed because transformImage() is also used as a caching function
-        // to get information about the shifts, so some operations must not be called when caching.
-        alignCalled = true;
-        List<ImagePlus> transformedImagesList = new ArrayList<>();
         // we want the source image to be the most to the left of the aligned stack otherwise
         // the algorithm cuts the images out of the resulting stack.
         this.setSourceImageIndex(getLeftMostImageIndex());
-        // use transformImage() for each image, then convert it to ImagePlus
-        for (int index = 0; index < this.getImages().size(); index++) {
-            Mat image = transformImage(index);
-            if (image == null) continue;
-            ImagePlus transformedImage = this.matToImagePlus(image);
-            transformedImagesList.add(transformedImage);
-        }
+        final List<Mat> transforms = this.getRenderTransforms(this.getSourceImageIndex());
         // VirtualStack dimension will be adapted from source image, adding the maximum horizontal and vertical shifts.
         this.setVirtualStack(new VirtualStack(getSourceImage().width() + getMaxXshift(), this.getSourceImage().height() + getMaxYshift(), ColorModel.getRGBdefault(), IJ.getDir(TEMP_PATH)));
-        for(int i = 0; i < transformedImagesList.size(); i++){
-            //if it is empty, it means the image was grayscale
-            if(imagesSplit.get(i).isEmpty()){
-                this.addToVirtualStack(new ImagePlus("", transformedImagesList.get(i).getProcessor()));
-            } else {
-                this.addToVirtualStack(new ImagePlus("", matToRGBImagePlus(imagesSplit.get(i)).getProcessor()));
-            }
-        }
+        this.addRenderedImages(transforms, -1);
+        transforms.stream().filter(Objects::nonNull).forEach(Mat::release);
     }
 
     /**
@@ -164,8 +349,7 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
      * @return the index of the image which is most to the left in the final stack, which will be source image
      */
     private int getLeftMostImageIndex() {
-        int max = Collections.max(horizShifts);
-        return horizShifts.indexOf(max);
+        return this.getTransformRecords().stream().filter(Objects::nonNull).max(Comparator.comparingDouble(TransformRecord::getHorizontalShift)).map(TransformRecord::getIndex).orElse(this.getSourceImageIndex());
     }
 
     /**
@@ -173,12 +357,10 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
      */
     @Override
     public void align() {
-        alignCalled = true;
         this.setSourceImageIndex(0);
+        final List<Mat> transforms = this.getRenderTransforms(this.getSourceImageIndex());
         // virtual stack size fixed to source image width and height
         this.setVirtualStack(new VirtualStack(getSourceImage().width(), getSourceImage().height(), ColorModel.getRGBdefault(), IJ.getDir(TEMP_PATH)));
-        ArrayList<Mat> sourceSplitRGB = new ArrayList<>();
-        Core.split(getSourceImage(), sourceSplitRGB);
         // source image will be the first image of the output stack, the others will be aligned subsequently
         if(!imagesSplit.get(getSourceImageIndex()).isEmpty()){
             this.addToVirtualStack(matToRGBImagePlus(imagesSplit.get(getSourceImageIndex())));
@@ -187,147 +369,283 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
         } else if(getSourceImage().channels() != 1){
             IJ.showMessage("Only grayscale and RGB formats are currently supported");
         }
-        // call transformImage to get the aligned stack
-        List<ImagePlus> transformedImagesList = new ArrayList<>();
-        for (int index = 0; index < this.getImages().size(); index++) {
-            Mat image = transformImage(index);
-            if (image == null) continue;
-            ImagePlus transformedImage = this.matToImagePlus(image);
-            transformedImagesList.add(transformedImage);
-        }
-        // starting from one because earlier we already inserted the first image.
-        // in case you want to let the user choose the source image, do a for cycle excluding sourceImageIndex()
-        for(int i = 0; i < transformedImagesList.size(); i++){
-            // first if to exclude the source image, since it had already been added some lines earlier.
-            if(i != getSourceImageIndex()){
-                //if imageSplit array is empty, it means the image was grayscale and its channels weren't added
-                if(imagesSplit.get(i).isEmpty()){
-                    this.addToVirtualStack(new ImagePlus("", transformedImagesList.get(i).getProcessor()));
-                } else {
-                    this.addToVirtualStack(new ImagePlus("", matToRGBImagePlus(imagesSplit.get(i)).getProcessor()));
-                }
-            }
+        // the source image had already been added some lines earlier.
+        this.addRenderedImages(transforms, getSourceImageIndex());
+        transforms.stream().filter(Objects::nonNull).forEach(Mat::release);
+    }
+
+    /**
+     * End of the run: the stack is on disk, so the planes, their channels and the transformations are released right away,
+     * the detectors and the matchers are dropped ( see FeatureContext ), then the estimated peak of the native memory of the run is reported.
+     * Until this is called the render phase can be run again, e.g. with the other "keep all pixel data" choice
+     */
+    @Override
+    public void dispose() {
+        if (!this.nativeMemoryMonitorStarted) {
+            return;
+        }
+        this.nativeMemoryMonitorStarted = false;
+        this.getImages().forEach(Mat::release);
+        this.imagesSplit.forEach(channels -> channels.forEach(Mat::release));
+        this.getTransformRecords().stream().filter(Objects::nonNull).forEach(TransformRecord::release);
+        this.getFeatureContext().close();
+        final long peak = this.nativeMemoryMonitor.stop();
+        IJ.log(peak < 0 ? "Auto align: the native memory can't be estimated on this platform"
+                : String.format("Auto align: peak native memory estimated at %d MB ( resident size minus the Java heap )", peak >> 20));
+    }
+
+    /**
+     * Estimates the transformation of an image, relative to the one taken as source, using a keypoint algorithm
+     * @param transformedImageIndex the index of the image to be aligned
+     * @return the transformation of the image, null if it couldn't be related to the source one
+     */
+    private TransformRecord estimateTransform(int transformedImageIndex) {
+        final PairwiseMatch pair = this.estimatePair(this.getSourceImageIndex(), transformedImageIndex, this.referenceMatcher);
+        return pair == null ? null : new TransformRecord(transformedImageIndex, pair.getHomography(), pair.getMatches(), pair.getInliers());
+    }
+
+    /**
+     * Same as {@link #estimatePair(int, int, ReferenceMatcher)}, with a matcher built only for this pair
+     */
+    private PairwiseMatch estimatePair(int referenceIndex, int transformedImageIndex) {
+        final Features referenceFeatures = this.getFeatureStore().get(referenceIndex, this.getImages().get(referenceIndex));
+        final ReferenceMatcher matcher = new ReferenceMatcher(this.getFeatureContext(), this.autoAlignEvent.getSettings().getMatcherType(), referenceFeatures);
+        try {
+            return this.estimatePair(referenceIndex, transformedImageIndex, matcher);
+        } finally {
+            matcher.release();
         }
     }
 
     /**
-     * transform an image as Mat, aligning it with the one taken as source using a keypoint algorithm
+     * Estimates the transformation between two images using a keypoint algorithm
+     * @param referenceIndex the index of the image the other one is related to
      * @param transformedImageIndex the index of the image to be aligned
-     * @return the image, as Mat, now aligned
+     * @param matcher the matcher trained on the features of the reference image
+     * @return the transformation from the reference image to the other one, null if they couldn't be related
      */
-    private Mat transformImage(int transformedImageIndex) {
+    private PairwiseMatch estimatePair(int referenceIndex, int transformedImageIndex, ReferenceMatcher matcher) {
         // two images
-        final Mat firstImage = this.getSourceImage();
+        final Mat firstImage = this.getImages().get(referenceIndex);
         final Mat secondImage = this.getImages().get(transformedImageIndex);
-        final MatOfKeyPoint firstKeyPoints = this.getKeypoint(firstImage);
-        final MatOfKeyPoint secondKeyPoints = this.getKeypoint(secondImage);
-        final Mat firstDescriptor = this.getDescriptor(firstImage, firstKeyPoints);
-        final Mat secondDescriptor = this.getDescriptor(secondImage, secondKeyPoints);
-        // match
-        final DescriptorMatcher matcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
-        // convert to float to use flann ( Brief is a binary descriptor )
-        if (firstDescriptor.type() != CV_8U) {
-            firstDescriptor.convertTo(firstDescriptor, CV_8U);
-        }
-        if (secondDescriptor.type() != CV_8U) {
-            secondDescriptor.convertTo(secondDescriptor, CV_8U);
-        }
+        // the features of every image are computed only once per run, whatever the pair
+        final Features firstFeatures = this.getFeatureStore().get(referenceIndex, firstImage);
+        final Features secondFeatures = this.getFeatureStore().get(transformedImageIndex, secondImage);
         // match descriptors and filter to avoid false positives
-        List<MatOfDMatch> knnMatches = new ArrayList<>();
-        try {
-            matcher.knnMatch(firstDescriptor, secondDescriptor, knnMatches, 2);
-        } catch (Exception e) {
-            IJ.showMessage("Check all your images, one of them seems to have no valuable matches for our algorithm");
+        final List<DMatch> goodMatches;
+        try (NativeScope scope = new NativeScope()) {
+            List<MatOfDMatch> knnMatches = new ArrayList<>();
+            try {
+                knnMatches = scope.addAll(matcher.knnMatch(secondFeatures));
+            } catch (Exception e) {
+                IJ.showMessage("Check all your images, one of them seems to have no valuable matches for our algorithm");
+            }
+            goodMatches = this.getGoodMatches(knnMatches);
         }
-        List<DMatch> goodMatches = this.getGoodMatches(knnMatches);
         // Below four matches the images couldn't be related
         if (goodMatches.size() > 4) {
-            final MatOfPoint2f points = new MatOfPoint2f(this.getPointsArray(firstImage));
-            Mat dest = new Mat();
-            // Check directly the Javadoc, to learn more
-            Core.perspectiveTransform(points, dest, this.getHomography(goodMatches, firstKeyPoints.toList(), secondKeyPoints.toList(), transformedImageIndex));
-            Mat perspectiveM = Imgproc.getPerspectiveTransform(points, dest);
-            Mat warpedImage = applyWarping(secondImage, transformedImageIndex, perspectiveM);
-            // then to all the things need to create a virtual stack of images
-            return warpedImage;
+            final List<Point> referenceInliers;
+            final List<Point> inliers;
+            Mat homography;
+            try (NativeScope scope = new NativeScope()) {
+                final Mat inliersMask = scope.add(new Mat());
+                homography = this.getHomography(goodMatches, firstFeatures.getKeyPointsList(), secondFeatures.getKeyPointsList(), referenceIndex, transformedImageIndex, inliersMask);
+                if (homography.empty()) {
+                    return this.estimateEccPair(referenceIndex, transformedImageIndex, goodMatches.size());
+                }
+                final Pair<List<Point>, List<Point>> matchedPoints = this.getMapOfPoints().get(new Pair<>(referenceIndex, transformedImageIndex));
+                referenceInliers = this.getInliers(matchedPoints.getFirst(), inliersMask);
+                inliers = this.getInliers(matchedPoints.getSecond(), inliersMask);
+            }
+            if (this.getPyramidLevels() > 0) {
+                homography = this.toFullResolution(homography, referenceIndex, transformedImageIndex, referenceInliers);
+            }
+            if (this.autoAlignEvent.getSettings().isEccRefinement()) {
+                homography = this.refineWithEcc(homography, referenceIndex, transformedImageIndex);
+            }
+            return new PairwiseMatch(referenceIndex, transformedImageIndex, homography, goodMatches.size(), referenceInliers, inliers);
         }
-        return null;
+        return this.estimateEccPair(referenceIndex, transformedImageIndex, goodMatches.size());
     }
 
     /**
+     * @return the homography refined on the intensities of the images, or the given one if the ECC didn't converge
+     */
+    private Mat refineWithEcc(Mat homography, int referenceIndex, int transformedImageIndex) {
+        final Mat refinedHomography = EccRefinement.refine(this.getImages().get(referenceIndex), this.getImages().get(transformedImageIndex), homography,
+                this.autoAlignEvent.getSettings().getMotionModel());
+        if (refinedHomography == null) {
+            return homography;
+        }
+        homography.release();
+        return refinedHomography;
+    }
+
+    /**
+     * Fallback of the pairs whose features couldn't be related: the transformation is found on the intensities alone, starting from the identity
+     * @return the transformation from the reference image to the other one, null if the fallback isn't enabled or the ECC didn't converge
+     */
+    private PairwiseMatch estimateEccPair(int referenceIndex, int transformedImageIndex, int matches) {
+        if (!this.autoAlignEvent.getSettings().isEccRefinement()) {
+            return null;
+        }
+        final Mat referenceImage = this.getImages().get(referenceIndex);
+        final Mat homography = EccRefinement.refine(referenceImage, this.getImages().get(transformedImageIndex), null, this.autoAlignEvent.getSettings().getMotionModel());
+        IJ.log(String.format("Auto align %d -> %d: not enough matches, ECC %s", referenceIndex, transformedImageIndex, homography == null ? "failed too" : "recovered it"));
+        if (homography == null) {
+            return null;
+        }
+        // no matches to place the slice in the stack with, the center of the reference image is used instead
+        final MatOfPoint2f center = new MatOfPoint2f(new Point(referenceImage.width() / 2.0, referenceImage.height() / 2.0));
+        final MatOfPoint2f transformedCenter = new MatOfPoint2f();
+        Core.perspectiveTransform(center, transformedCenter, homography);
+        this.getMapOfPoints().put(new Pair<>(referenceIndex, transformedImageIndex), new Pair<>(center.toList(), transformedCenter.toList()));
+        return new PairwiseMatch(referenceIndex, transformedImageIndex, homography, matches, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Scales up a homography found on the coarse level of the pyramid and, if enabled, refines it on the images of the stack.
+     * The pairs with a tiled plane are not refined: the plane is held only as its overview, and its full resolution regions
+     * would be needed for a fine step worth doing
      *
-     * @param image the Mat (image) to be warped
-     * @param imageIndex the image index
-     * @param perspectiveM the perspective transformation matrix necessary for the warping
-     * @return the warped Mat
+     * @param coarseHomography the homography of the coarse level, released here
+     * @param referenceIndex the index of the image the other one is related to
+     * @param transformedImageIndex the index of the image to be aligned
+     * @param inlierPoints the points of the reference image consistent with the coarse homography
+     * @return the full resolution homography
      */
-    private Mat applyWarping(Mat image, int imageIndex, Mat perspectiveM){
-        // images higher than sourceImage get partially cut, so this is to shift
-        // the whole stack vertically of the necessary amount
-        perspectiveM.put(1,2, perspectiveM.get(1,2)[0] - getSourceVerticalShift());
-        // Get horizontal and vertical shift of the image from the perspectiveMatrix (do a matrix dump to check it out)
-        // if it's < 1 then it's either zero or the matrix calculation error equivalent to 0
-        int imgHorizontalShift = (abs((int) perspectiveM.get(0,2)[0])) < 1 ? 0 : ((int) perspectiveM.get(0,2)[0]);
-        int imgVerticalShift = (abs((int) perspectiveM.get(1,2)[0])) < 1 ? 0 : ((int) perspectiveM.get(1,2)[0]);
-        if(!alignCalled){
-            horizShifts.add(imageIndex, imgHorizontalShift);
-            verticShifts.add(imageIndex, imgVerticalShift);
-        }
-        // check and update the max shifts, if needed
-        if(this.getMaxXshift() < abs(imgHorizontalShift)){
-            this.setMaxXshift(abs(imgHorizontalShift));
-        }
-        if(this.getMaxYshift() < abs(imgVerticalShift)){
-            this.setMaxYshift(abs(imgVerticalShift));
+    private Mat toFullResolution(Mat coarseHomography, int referenceIndex, int transformedImageIndex, List<Point> inlierPoints) {
+        final Mat homography = CoarseToFine.scaleUp(coarseHomography, this.getPyramidLevels());
+        coarseHomography.release();
+        if (!this.refinement || this.tiledImages.containsKey(referenceIndex) || this.tiledImages.containsKey(transformedImageIndex)) {
+            return homography;
         }
-        Mat warpedImage = new Mat();
-        //first check if align function was called, not to shift twice
-        // (it gets called by cachetransformedImage(), by alignKeepOriginal() or by align()).
-        if (alignCalled) {
-            // if the array is not empty, it means it got filled because the image was rgb.
-            if(!imagesSplit.get(imageIndex).isEmpty()){
-                alignImageChannels(imageIndex, perspectiveM);
+        final int searchRadius = (int) (REFINEMENT_SEARCH_RADIUS * CoarseToFine.getScale(this.getPyramidLevels()));
+        final Mat refinedHomography = CoarseToFine.refine(this.getImages().get(referenceIndex), this.getImages().get(transformedImageIndex), inlierPoints, homography, searchRadius,
+                this.autoAlignEvent.getSettings().getMotionModel());
+        if (refinedHomography != homography) {
+            homography.release();
+        }
+        return refinedHomography;
+    }
+
+    /**
+     * Moves the homographies from the source of the estimation to the reference of the render:
+     * reference -> estimation source -> image, then shifts them so no image gets cut
+     *
+     * @param referenceIndex the index of the image the others are aligned to
+     * @return the perspective transformation matrix of every image, null for the images that couldn't be matched
+     */
+    private List<Mat> getRenderTransforms(int referenceIndex) {
+        final TransformRecord reference = this.getTransformRecords().get(referenceIndex);
+        final Mat referenceInverse = reference == null ? Mat.eye(3, 3, CV_64F) : reference.getHomography().inv();
+        final List<Mat> transforms = new ArrayList<>();
+        for (TransformRecord record : this.getTransformRecords()) {
+            if (record == null) {
+                transforms.add(null);
+                continue;
             }
+            final Mat transform = new Mat();
+            Core.gemm(record.getHomography(), referenceInverse, 1, new Mat(), 0, transform);
+            Core.divide(transform, new Scalar(transform.get(2, 2)[0]), transform);
+            transforms.add(transform);
         }
-        // Takes image to which apply transformation, output image, the perspective transformation matrix,
-        // the size of the output image, then warps the image using the matrix
-        Imgproc.warpPerspective(image, warpedImage, perspectiveM, new Size(this.getFinalStackDimension().width + this.getMaxXshift(), this.getMaximumSize().height + this.getMaxYshift()), Imgproc.WARP_INVERSE_MAP, Core.BORDER_CONSTANT);
-        // not the nicest solution, but obviously the image's data address changes after but the image it's the same, so to retrieve the same path I had to do this
-        this.replaceKey(image.dataAddr(), warpedImage.dataAddr());
-        return warpedImage;
+        referenceInverse.release();
+        // images higher than the reference get partially cut, so this is to shift
+        // the whole stack vertically of the necessary amount
+        final double sourceVerticalShift = Math.max(0, transforms.stream().filter(Objects::nonNull).mapToDouble(transform -> transform.get(1, 2)[0]).max().orElse(0));
+        this.setMaxXshift(0);
+        this.setMaxYshift(0);
+        for (Mat transform : transforms) {
+            if (transform == null) {
+                continue;
+            }
+            transform.put(1, 2, transform.get(1, 2)[0] - sourceVerticalShift);
+            // Get horizontal and vertical shift of the image from the perspectiveMatrix (do a matrix dump to check it out)
+            // if it's < 1 then it's either zero or the matrix calculation error equivalent to 0
+            int imgHorizontalShift = (abs((int) transform.get(0,2)[0])) < 1 ? 0 : ((int) transform.get(0,2)[0]);
+            int imgVerticalShift = (abs((int) transform.get(1,2)[0])) < 1 ? 0 : ((int) transform.get(1,2)[0]);
+            // check and update the max shifts, if needed
+            if(this.getMaxXshift() < abs(imgHorizontalShift)){
+                this.setMaxXshift(abs(imgHorizontalShift));
+            }
+            if(this.getMaxYshift() < abs(imgVerticalShift)){
+                this.setMaxYshift(abs(imgVerticalShift));
+            }
+        }
+        return transforms;
     }
 
     /**
-     * Aligns rgb image channels, based on a perspective transform matrix
-     * @param imageIndex the index of the rgb image
-     * @param perspectiveTransform the perspective transform matrix used to align the image
+     * Renders the images on the workers, a window of slices at a time so only a few warped images are in memory,
+     * then adds them to the virtual stack in slice order
+     *
+     * @param transforms the transformations of the images
+     * @param skippedIndex the index of an image already in the stack, -1 if none
      */
-    private void alignImageChannels(int imageIndex, Mat perspectiveTransform){
-        List<Mat> warpedChannelList = new ArrayList<>();
-        // shift (align) all the rgb channels one by one
-        for(int j = 0; j < imagesSplit.get(imageIndex).size(); j++){
-            Mat warpedChannel = new Mat();
-            // down here the max offset is added to size (width and height), this is possible because transformImage
-            // gets called already nImages times, and the max shifts are already calculated as well.
-            Imgproc.warpPerspective(imagesSplit.get(imageIndex).get(j), warpedChannel, perspectiveTransform, new Size(this.getFinalStackDimension().width + this.getMaxXshift(), this.getMaximumSize().height + this.getMaxYshift()), Imgproc.WARP_INVERSE_MAP, Core.BORDER_CONSTANT);
-            warpedChannelList.add(warpedChannel);
+    private void addRenderedImages(List<Mat> transforms, int skippedIndex) {
+        for (int from = 0; from < transforms.size(); from += SliceWorkers.getThreads()) {
+            final int to = Math.min(transforms.size(), from + SliceWorkers.getThreads());
+            final List<ImagePlus> renderedImages = SliceWorkers.map(from, to, index -> index == skippedIndex ? null : this.renderImage(index, transforms.get(index)));
+            renderedImages.stream().filter(Objects::nonNull).forEach(this::addToVirtualStack);
         }
-        // replace the old rgb channels with the aligned ones.
-        imagesSplit.get(imageIndex).clear();
-        imagesSplit.get(imageIndex).addAll(warpedChannelList);
     }
 
     /**
+     * Render phase of a single image: the rgb channels ( or the grayscale image ) are warped and converted to ImagePlus.
+     * Nothing of the builder is modified, so the render can be repeated with another reference
      *
-     * @return the vertical shift between the source image and the higher image in the aligned stack
+     * @param imageIndex the index of the image
+     * @param perspectiveM the perspective transformation matrix necessary for the warping, null if the image wasn't matched
+     * @return the warped image, null if it can't be rendered
      */
-    private double getSourceVerticalShift() {
-        return verticShifts.size() == 0? 0 : (double) Collections.max(verticShifts) - verticShifts.get(getSourceImageIndex());
+    private ImagePlus renderImage(int imageIndex, Mat perspectiveM) {
+        if (perspectiveM == null) {
+            return null;
+        }
+        // down here the max offset is added to size (width and height), this is possible because
+        // the max shifts are already calculated from all the transformations.
+        final Size size = new Size(this.getFinalStackDimension().width + this.getMaxXshift(), this.getMaximumSize().height + this.getMaxYshift());
+        // if the array is not empty, it means it got filled because the image was rgb.
+        if (!imagesSplit.get(imageIndex).isEmpty()) {
+            final List<Mat> warpedChannelList = new ArrayList<>();
+            // shift (align) all the rgb channels one by one
+            for (Mat channel : imagesSplit.get(imageIndex)) {
+                warpedChannelList.add(this.applyWarping(channel, perspectiveM, size));
+            }
+            final ImagePlus rgbImage = matToRGBImagePlus(warpedChannelList);
+            warpedChannelList.forEach(Mat::release);
+            return rgbImage == null ? null : new ImagePlus("", rgbImage.getProcessor());
+        }
+        final Mat warpedImage = this.applyWarping(this.getImages().get(imageIndex), perspectiveM, size);
+        final ImagePlus transformedImage = new ImagePlus("", this.matToImagePlus(warpedImage).getProcessor());
+        warpedImage.release();
+        return transformedImage;
+    }
+
+    /**
+     *
+     * @param image the Mat (image) to be warped
+     * @param perspectiveM the perspective transformation matrix necessary for the warping
+     * @param size the size of the output image
+     * @return the warped Mat
+     */
+    private Mat applyWarping(Mat image, Mat perspectiveM, Size size) {
+        Mat warpedImage = new Mat();
+        // the affine models keep the last row ( 0, 0, 1 ), warpAffine needs only the first two and skips the division of every pixel
+        if (this.autoAlignEvent.getSettings().getMotionModel().isAffine() || this.autoAlignEvent.getSettings().getRegistrationMode() == RegistrationMode.PHASE_CORRELATION) {
+            Imgproc.warpAffine(image, warpedImage, perspectiveM.rowRange(0, 2), size, Imgproc.WARP_INVERSE_MAP, Core.BORDER_CONSTANT);
+            return warpedImage;
+        }
+        // Takes image to which apply transformation, output image, the perspective transformation matrix,
+        // the size of the output image, then warps the image using the matrix
+        Imgproc.warpPerspective(image, warpedImage, perspectiveM, size, Imgproc.WARP_INVERSE_MAP, Core.BORDER_CONSTANT);
+        return warpedImage;
     }
 
     // here you get the homography matrix (matches between images as input, matrix indicating translation as output)
-    // which is used in transformImage
-    private Mat getHomography(List<DMatch> goodMatches, List<KeyPoint> firstKeyPoints, List<KeyPoint> secondKeyPoints, int indexTransformedImage) {
+    // which is used in estimateTransform
+    private Mat getHomography(List<DMatch> goodMatches, List<KeyPoint> firstKeyPoints, List<KeyPoint> secondKeyPoints, int referenceIndex, int indexTransformedImage, Mat inliersMask) {
         final List<Point> obj = new ArrayList<>();
         final List<Point> scene = new ArrayList<>();
         final List<KeyPoint> listOfKeyPointsObject = new ArrayList<>(firstKeyPoints);
@@ -338,27 +656,42 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
         }
         MatOfPoint2f objMat = new MatOfPoint2f();
         MatOfPoint2f sceneMat = new MatOfPoint2f();
-        this.getMapOfPoints().put(new Pair<>(this.getSourceImageIndex(), indexTransformedImage), new Pair<>(obj, scene));
+        // the keypoints may come from the coarse level, the map always keeps full resolution coordinates
+        this.getMapOfPoints().put(new Pair<>(referenceIndex, indexTransformedImage), new Pair<>(this.toFullResolution(obj), this.toFullResolution(scene)));
         objMat.fromList(obj);
         sceneMat.fromList(scene);
-        final double briefThreshold = 0.005;
-        return Calib3d.findHomography(objMat, sceneMat, Calib3d.RANSAC, briefThreshold);
+        final AutoAlignSettingEvent settings = this.autoAlignEvent.getSettings();
+        final MotionModel model = settings.getMotionModel();
+        final Mat homography = model.estimate(objMat, sceneMat, settings.getEstimator(), this.reprojectionThreshold, inliersMask, settings.getMaxIterations(), settings.getConfidence());
+        objMat.release();
+        sceneMat.release();
+        // OpenCV doesn't tell the iterations, they're estimated to see which pairs the time goes on
+        final int inliers = inliersMask.empty() ? 0 : Core.countNonZero(inliersMask);
+        IJ.log(String.format("Auto align %d -> %d: %s %s, %d matches, %d inliers, about %d iterations", referenceIndex, indexTransformedImage, model, settings.getEstimator(),
+                goodMatches.size(), inliers, RobustEstimator.getIterations(model.getSampleSize(), goodMatches.size(), inliers, settings.getConfidence(), settings.getMaxIterations())));
+        return homography;
     }
 
     /**
-     *
-     * @param firstImage Input image
-     * @return array of Point containing the coordinates of the 4 corners of the image
+     * @return the points whose match is consistent with the homography
      */
-    private Point[] getPointsArray(Mat firstImage) {
-        final Point[] pointsArray = new Point[4];
-        final int width = firstImage.width();
-        final int height = firstImage.height();
-        pointsArray[0] = new Point(0, 0);
-        pointsArray[1] = new Point(0, height);
-        pointsArray[2] = new Point(width, height);
-        pointsArray[3] = new Point(width, 0);
-        return pointsArray;
+    private List<Point> getInliers(List<Point> points, Mat inliersMask) {
+        final List<Point> inliers = new ArrayList<>();
+        for (int i = 0; i < points.size(); i++) {
+            if (inliersMask.get(i, 0)[0] != 0) {
+                inliers.add(points.get(i));
+            }
+        }
+        return inliers;
+    }
+
+    private List<Point> toFullResolution(List<Point> points) {
+        final double scale = CoarseToFine.getScale(this.getPyramidLevels());
+        final List<Point> scaledPoints = new ArrayList<>();
+        for (Point point : points) {
+            scaledPoints.add(new Point(point.x * scale, point.y * scale));
+        }
+        return scaledPoints;
     }
 
     /**
@@ -391,6 +724,10 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
      */
     private void importImages() {
         for (ImageFile imageFile : this.getEditor().getImageFiles()) {
+            if (imageFile.getImagesWholeSlide().stream().anyMatch(TiledSlideImage.class::isInstance)) {
+                this.importTiledImages(imageFile);
+                continue;
+            }
             try {
                 List<Mat> images = new ArrayList<>();
                 // we add an empty array to imagesSplit, in case the images are RGB,
@@ -408,7 +745,6 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
                 // the alignment is handled in grayscale, provides the aligned stack information that we will eventually use
                 // to align the rgb images, which have been separated into mat channels.
                 imreadmulti(imageFile.getPathFile(), images, IMREAD_GRAYSCALE);
-                images.forEach(image -> this.pathMap.put(image.dataAddr(), imageFile.getPathFile()));
                 this.getImages().addAll(images);
             } catch (Exception e) {
                 IJ.showMessage(e.getMessage());
@@ -416,23 +752,63 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
         }
     }
 
-    private Mat getDescriptor(Mat image, MatOfKeyPoint keyPoints) {
-        final Mat tempDescriptor = new Mat();
-        final BriefDescriptorExtractor extractor = BriefDescriptorExtractor.create(32, true);
-        extractor.compute(image, keyPoints, tempDescriptor);
-        return tempDescriptor;
+    /**
+     * The planes of the file can't be loaded as a single Mat, so their overviews are used to render the stack
+     * while the features are found on the tiles read from the full resolution plane
+     */
+    private void importTiledImages(ImageFile imageFile) {
+        for (SlideImage slideImage : imageFile.getImagesWholeSlide()) {
+            final TiledSlideImage tiledImage = (TiledSlideImage) slideImage;
+            final ImageProcessor overview = tiledImage.getProcessor();
+            final List<Mat> channels = new ArrayList<>();
+            if (overview instanceof ColorProcessor) {
+                // same order of the channels split from imread
+                final ColorProcessor colorOverview = (ColorProcessor) overview;
+                for (int channel = 3; channel > 0; channel--) {
+                    channels.add(TiledFeatureExtractor.toGrayMat(colorOverview.getChannel(channel, null)));
+                }
+            }
+            this.imagesSplit.add(channels);
+            this.tiledImages.put(this.getImages().size(), tiledImage);
+            this.getImages().add(TiledFeatureExtractor.toGrayMat(overview));
+        }
     }
 
     /**
+     * Used by the feature store, only the first time the features of an image are requested
      *
-     * @param image the image of which keypoints are needed
-     * @return a MatOfKeyPoint variable containing keypoints of the image
+     * @param index the index of the image
+     * @param image the image of which features are needed
+     * @return the keypoints of the image and their descriptors
      */
-    private MatOfKeyPoint getKeypoint(Mat image) {
-        final MatOfKeyPoint tempKeypoint = new MatOfKeyPoint();
-        final StarDetector detector = StarDetector.create();
-        detector.detect(image, tempKeypoint);
-        return tempKeypoint;
+    private Features extractFeatures(int index, Mat image) {
+        final int keyPointBudget = this.autoAlignEvent.getSettings().getKeyPointBudget();
+        final TiledSlideImage tiledImage = this.tiledImages.get(index);
+        if (tiledImage != null) {
+            // the image is only the overview of the plane, the features are found on the tiles of the plane halved until they're
+            // as detailed as the matched level of the overview, or at most twice as much, and then moved to its coordinates
+            final int tileLevels = this.getPyramidLevels() + 31 - Integer.numberOfLeadingZeros(tiledImage.getOverviewFactor());
+            final double tileScale = tiledImage.getOverviewFactor() * CoarseToFine.getScale(this.getPyramidLevels()) / CoarseToFine.getScale(tileLevels);
+            final String key = FeatureCacheService.getKey(image, this.getFeatureStrategy().getParameters() + ";budget=" + keyPointBudget + ";tiled;levels=" + this.getPyramidLevels() + ";tileLevels=" + tileLevels);
+            return FeatureCacheService.load(key).orElseGet(() -> {
+                final Features extractedFeatures = TiledFeatureExtractor.extract(tiledImage, this.getFeatureContext(), keyPointBudget, tileLevels, tileScale);
+                FeatureCacheService.save(key, extractedFeatures);
+                return extractedFeatures;
+            });
+        }
+        // in the coarse to fine mode, the keypoints are in the coordinates of the coarse level
+        final Mat level = CoarseToFine.downsample(image, this.getPyramidLevels());
+        // the features of a plane already seen with the same detector are read from the disk cache
+        final String key = FeatureCacheService.getKey(level, this.getFeatureStrategy().getParameters() + ";budget=" + keyPointBudget);
+        final Features features = FeatureCacheService.load(key).orElseGet(() -> {
+            final Features extractedFeatures = this.getFeatureContext().extract(level, keyPointBudget);
+            FeatureCacheService.save(key, extractedFeatures);
+            return extractedFeatures;
+        });
+        if (level != image) {
+            level.release();
+        }
+        return features;
     }
 
     private List<DMatch> getGoodMatches(List<MatOfDMatch> knnMatches) {
@@ -455,22 +831,23 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
         return this.getImages().get(this.getSourceImageIndex());
     }
 
-    private void replaceKey(Long oldAddress, Long newAddress) {
-        String value = this.pathMap.get(oldAddress);
-        this.pathMap.remove(oldAddress);
-        this.pathMap.put(newAddress, value);
-    }
-
     private void setOffsets() {
         this.setOffsetsX(new ArrayList<>());
         this.setOffsetsY(new ArrayList<>());
-        for (int index = 0; index < this.getMapOfPoints().size(); index++) {
+        // one offset per image, in the order of the stack: the unmatched images have no points but still take their place
+        for (int index = 0; index < this.getImages().size(); index++) {
             if (index == this.getSourceImageIndex()) {
                 this.getOffsetsX().add(0);
                 this.getOffsetsY().add(0);
                 continue;
             }
             Pair<List<Point>, List<Point>> pointsPair = this.getMapOfPoints().get(new Pair<>(this.getSourceImageIndex(), index));
+            // the image couldn't be matched, it won't be in the stack
+            if (pointsPair == null) {
+                this.getOffsetsX().add(0);
+                this.getOffsetsY().add(0);
+                continue;
+            }
             Point point = pointsPair.getFirst().get(0);
             this.getOffsetsX().add((int) (point.x - pointsPair.getSecond().get(0).x));
             this.getOffsetsY().add((int) (point.y - pointsPair.getSecond().get(0).y));
@@ -520,14 +897,33 @@ public class BriefBuilder extends AbstractBuilder<Mat> {
         return mapOfPoints;
     }
 
-    public List<Mat> getTransformedImages() {
-        return transformedImages;
+    private List<TransformRecord> getTransformRecords() {
+        return this.transformRecords;
     }
 
     public List<Mat> getImages() {
         return images;
     }
 
+    private FeatureStore getFeatureStore() {
+        return this.featureStore;
+    }
+
+    private FeatureStrategy getFeatureStrategy() {
+        return this.autoAlignEvent.getSettings().getFeatureStrategy();
+    }
+
+    private FeatureContext getFeatureContext() {
+        return this.featureContext;
+    }
+
+    /**
+     * @return how many times the images are halved before finding their features, 0 if they're used at full resolution
+     */
+    private int getPyramidLevels() {
+        return this.pyramidLevels;
+    }
+
     /**
      *
      * @param newValue sets the max shift in the stack in order to adapt its width
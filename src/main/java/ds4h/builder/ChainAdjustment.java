@@ -0,0 +1,170 @@
+package ds4h.builder;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.opencv.core.CvType.CV_64F;
+
+/**
+ * Global least squares refinement of the chained registration: the errors of the single links add up along the chain,
+ * so all the pairwise matches ( the neighbours and the ones two slices apart ) are used at once to correct the composed transformations.
+ * Every slice gets an affine correction D, applied after its slice to source transformation A, so that for every inlier match (p, q)
+ * of the slices (a, b) D_a * A_a * p and D_b * A_b * q are as close as possible; the source slice is kept fixed.
+ * The problem is linear in the corrections, so it's solved with the normal equations, the same for the x and the y rows of D.
+ */
+class ChainAdjustment {
+    // more than this doesn't improve the solution, it only costs time
+    private static final int MAXIMUM_POINTS_PER_PAIR = 100;
+    // keeps the slices not matched with any other one where they are, without changing the others
+    private static final double DAMPING = 1e-6;
+    private static final int PARAMETERS = 3;
+
+    private ChainAdjustment() {
+    }
+
+    /**
+     * @param homographies the source to slice homographies, refined in place; null for the slices not in the chain
+     * @param pairs        the pairwise matches, null for the pairs that couldn't be matched
+     * @param sourceIndex  the index of the source slice
+     * @param normalization the size of the biggest slice, the coordinates are divided by this so the system is well conditioned
+     */
+    static void refine(Mat[] homographies, List<PairwiseMatch> pairs, int sourceIndex, double normalization) {
+        final Map<Integer, Integer> unknowns = new HashMap<>();
+        for (int i = 0; i < homographies.length; i++) {
+            if (homographies[i] != null && i != sourceIndex) {
+                unknowns.put(i, unknowns.size());
+            }
+        }
+        if (unknowns.isEmpty()) {
+            return;
+        }
+        final int size = unknowns.size() * PARAMETERS;
+        final Mat normalMatrix = Mat.zeros(size, size, CV_64F);
+        final Mat rightHandSide = Mat.zeros(size, 2, CV_64F);
+        final double[][] normal = new double[size][size];
+        final double[][] right = new double[size][2];
+        for (PairwiseMatch pair : pairs) {
+            if (pair == null || homographies[pair.getReferenceIndex()] == null || homographies[pair.getIndex()] == null) {
+                continue;
+            }
+            final double[][] referencePoints = toSourceCoordinates(pair.getReferencePoints(), homographies[pair.getReferenceIndex()], normalization);
+            final double[][] points = toSourceCoordinates(pair.getPoints(), homographies[pair.getIndex()], normalization);
+            final Integer referenceUnknown = unknowns.get(pair.getReferenceIndex());
+            final Integer unknown = unknowns.get(pair.getIndex());
+            for (int i = 0; i < points.length; i++) {
+                addResidual(normal, right, referenceUnknown, referencePoints[i], unknown, points[i]);
+            }
+        }
+        for (int block = 0; block < unknowns.size(); block++) {
+            // the damping pulls every correction towards the identity
+            for (int parameter = 0; parameter < PARAMETERS; parameter++) {
+                normal[block * PARAMETERS + parameter][block * PARAMETERS + parameter] += DAMPING;
+            }
+            right[block * PARAMETERS][0] += DAMPING;
+            right[block * PARAMETERS + 1][1] += DAMPING;
+        }
+        for (int row = 0; row < size; row++) {
+            normalMatrix.put(row, 0, normal[row]);
+            rightHandSide.put(row, 0, right[row]);
+        }
+        final Mat solution = new Mat();
+        if (!Core.solve(normalMatrix, rightHandSide, solution, Core.DECOMP_CHOLESKY) && !Core.solve(normalMatrix, rightHandSide, solution, Core.DECOMP_SVD)) {
+            return;
+        }
+        for (Map.Entry<Integer, Integer> entry : unknowns.entrySet()) {
+            final int block = entry.getValue() * PARAMETERS;
+            // the correction is found on normalized coordinates, only its translation depends on the normalization
+            final Mat correction = Mat.eye(3, 3, CV_64F);
+            for (int row = 0; row < 2; row++) {
+                correction.put(row, 0, solution.get(block, row)[0], solution.get(block + 1, row)[0], solution.get(block + 2, row)[0] * normalization);
+            }
+            final Mat sliceToSource = homographies[entry.getKey()].inv();
+            final Mat refined = new Mat();
+            Core.gemm(correction, sliceToSource, 1, new Mat(), 0, refined);
+            final Mat homography = refined.inv();
+            Core.divide(homography, new Scalar(homography.get(2, 2)[0]), homography);
+            homographies[entry.getKey()].release();
+            homographies[entry.getKey()] = homography;
+            correction.release();
+            sliceToSource.release();
+            refined.release();
+        }
+        normalMatrix.release();
+        rightHandSide.release();
+        solution.release();
+    }
+
+    /**
+     * Adds the residual D_a * p - D_b * q of a match to the normal equations, a null unknown is the source slice, whose D is the identity
+     */
+    private static void addResidual(double[][] normal, double[][] right, Integer referenceUnknown, double[] referencePoint, Integer unknown, double[] point) {
+        final double[] referenceRow = {referencePoint[0], referencePoint[1], 1};
+        final double[] row = {-point[0], -point[1], -1};
+        for (int axis = 0; axis < 2; axis++) {
+            // the known part of the residual, the coordinates of the points of the source slice
+            double constant = 0;
+            if (referenceUnknown == null) {
+                constant += referencePoint[axis];
+            }
+            if (unknown == null) {
+                constant -= point[axis];
+            }
+            if (referenceUnknown != null) {
+                addProducts(normal, right, referenceUnknown, referenceRow, referenceUnknown, referenceRow, unknown, row, constant, axis);
+            }
+            if (unknown != null) {
+                addProducts(normal, right, unknown, row, referenceUnknown, referenceRow, unknown, row, constant, axis);
+            }
+        }
+    }
+
+    private static void addProducts(double[][] normal, double[][] right, int block, double[] blockRow, Integer referenceUnknown, double[] referenceRow, Integer unknown, double[] row, double constant, int axis) {
+        for (int i = 0; i < PARAMETERS; i++) {
+            final int equation = block * PARAMETERS + i;
+            // the normal equations only have to be filled once, the x and the y rows of D share them
+            if (axis == 0) {
+                for (int j = 0; j < PARAMETERS; j++) {
+                    if (referenceUnknown != null) {
+                        normal[equation][referenceUnknown * PARAMETERS + j] += blockRow[i] * referenceRow[j];
+                    }
+                    if (unknown != null) {
+                        normal[equation][unknown * PARAMETERS + j] += blockRow[i] * row[j];
+                    }
+                }
+            }
+            right[equation][axis] -= blockRow[i] * constant;
+        }
+    }
+
+    /**
+     * @return at most MAXIMUM_POINTS_PER_PAIR points, moved from the slice to the source coordinates and normalized
+     */
+    private static double[][] toSourceCoordinates(List<Point> slicePoints, Mat homography, double normalization) {
+        if (slicePoints.isEmpty()) {
+            return new double[0][];
+        }
+        final int step = Math.max(1, slicePoints.size() / MAXIMUM_POINTS_PER_PAIR);
+        final Point[] sampledPoints = new Point[(slicePoints.size() + step - 1) / step];
+        for (int i = 0; i < sampledPoints.length; i++) {
+            sampledPoints[i] = slicePoints.get(i * step);
+        }
+        final MatOfPoint2f sourcePoints = new MatOfPoint2f();
+        final Mat sliceToSource = homography.inv();
+        Core.perspectiveTransform(new MatOfPoint2f(sampledPoints), sourcePoints, sliceToSource);
+        final Point[] transformedPoints = sourcePoints.toArray();
+        final double[][] points = new double[transformedPoints.length][];
+        for (int i = 0; i < transformedPoints.length; i++) {
+            points[i] = new double[]{transformedPoints[i].x / normalization, transformedPoints[i].y / normalization};
+        }
+        sliceToSource.release();
+        sourcePoints.release();
+        return points;
+    }
+}
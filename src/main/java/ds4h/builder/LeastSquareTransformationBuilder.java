@@ -130,7 +130,7 @@ public class LeastSquareTransformationBuilder extends AbstractBuilder<SlideImage
                 offsetXTransformed = Math.abs(this.getOffsetsX().get(index));
             }
             offsetXTransformed += this.getMaxOffsetX();
-            int difference = (int) (this.getManagers().get(this.getMaxOffsetYIndex()).getRoisAsArray()[0].getYBase() - this.getManagers().get(index).getRoisAsArray()[0].getYBase());
+            int difference = (int) (this.getEditor().getWholeSlideImage(this.getMaxOffsetYIndex()).getEditorScaleY() * this.getManagers().get(this.getMaxOffsetYIndex()).getRoisAsArray()[0].getYBase() - this.getEditor().getWholeSlideImage(index).getEditorScaleY() * this.getManagers().get(index).getRoisAsArray()[0].getYBase());
             newProcessor.insert(transformedOriginalSlideImage.getProcessor(), offsetXOriginal, difference);
             if (transformedImage != null) {
                 newProcessor.insert(transformedImage.getProcessor(), offsetXTransformed, (this.getMaxOffsetY()));
@@ -149,9 +149,12 @@ public class LeastSquareTransformationBuilder extends AbstractBuilder<SlideImage
                 this.getOffsetsY().add(0);
                 continue;
             }
-            Roi roi = this.getManagers().get(index).getRoisAsArray()[0];
-            this.getOffsetsX().add((int) (roi.getXBase() - this.getSourceImage().getManager().getRoisAsArray()[0].getXBase()));
-            this.getOffsetsY().add((int) (roi.getYBase() - this.getSourceImage().getManager().getRoisAsArray()[0].getYBase()));
+            // the corners are in editor coordinates, the offsets are in the ones of the whole slide images
+            final SlideImage wholeSlideImage = this.getEditor().getWholeSlideImage(index);
+            final Roi roi = this.getManagers().get(index).getRoisAsArray()[0];
+            final Roi sourceRoi = this.getSourceImage().getManager().getRoisAsArray()[0];
+            this.getOffsetsX().add((int) (roi.getXBase() * wholeSlideImage.getEditorScaleX() - sourceRoi.getXBase() * this.getSourceImage().getEditorScaleX()));
+            this.getOffsetsY().add((int) (roi.getYBase() * wholeSlideImage.getEditorScaleY() - sourceRoi.getYBase() * this.getSourceImage().getEditorScaleY()));
         }
         Optional<Integer> optMaxX = this.getOffsetsX().stream().max(Comparator.naturalOrder());
         optMaxX.ifPresent(this::setMaxOffsetX);
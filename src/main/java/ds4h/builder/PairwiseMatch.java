@@ -0,0 +1,69 @@
+package ds4h.builder;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.util.List;
+
+/**
+ * Result of the registration of a pair of slices: the homography from the reference slice to the other one
+ * and the inlier matches it was estimated on, kept for the global refinement of the chained mode.
+ */
+class PairwiseMatch {
+    private final int referenceIndex;
+    private final int index;
+    private final Mat homography;
+    private final int matches;
+    private final List<Point> referencePoints;
+    private final List<Point> points;
+
+    PairwiseMatch(int referenceIndex, int index, Mat homography, int matches, List<Point> referencePoints, List<Point> points) {
+        this.referenceIndex = referenceIndex;
+        this.index = index;
+        this.homography = homography;
+        this.matches = matches;
+        this.referencePoints = referencePoints;
+        this.points = points;
+    }
+
+    int getReferenceIndex() {
+        return this.referenceIndex;
+    }
+
+    int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the 3x3 homography, from the reference slice to this one
+     */
+    Mat getHomography() {
+        return this.homography;
+    }
+
+    int getMatches() {
+        return this.matches;
+    }
+
+    int getInliers() {
+        return this.points.size();
+    }
+
+    /**
+     * @return the inlier points of the reference slice, in the coordinates of its Mat
+     */
+    List<Point> getReferencePoints() {
+        return this.referencePoints;
+    }
+
+    /**
+     * @return the inlier points of this slice, matching the reference ones
+     */
+    List<Point> getPoints() {
+        return this.points;
+    }
+
+    void release() {
+        this.homography.release();
+    }
+}
@@ -0,0 +1,27 @@
+package ds4h.builder;
+
+/**
+ * Which slices are registered to each other by the automatic alignment
+ */
+public enum RegistrationMode {
+    TO_SOURCE("Every slice to the source", "Best for a few slices, all of them similar to the source"),
+    CHAINED("Every slice to its neighbour", "Best for long serial section stacks, the transformations are composed along the chain"),
+    PHASE_CORRELATION("Translation only, by phase correlation", "Fastest, for slices that differ only by a shift, no features are detected");
+
+    private final String displayName;
+    private final String description;
+
+    RegistrationMode(String displayName, String description) {
+        this.displayName = displayName;
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    @Override
+    public String toString() {
+        return this.displayName;
+    }
+}
@@ -0,0 +1,72 @@
+package ds4h.builder;
+
+import ij.Prefs;
+import org.opencv.core.Core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Runs an independent task for every slice on a bounded pool, sized by the ImageJ "parallel threads" option.
+ * While the pool is running, the threads OpenCV uses inside each call are reduced, so the cores are not oversubscribed.
+ * The results are always returned in slice order, whatever task finishes first.
+ */
+class SliceWorkers {
+    private SliceWorkers() {
+    }
+
+    static int getThreads() {
+        return Math.max(1, Prefs.getThreads());
+    }
+
+    /**
+     * @param from the first slice, inclusive
+     * @param to   the last slice, exclusive
+     * @param task the work of a single slice, it must not depend on the other slices
+     * @return the results of the slices, in slice order
+     */
+    static <R> List<R> map(int from, int to, IntFunction<R> task) {
+        final int workers = Math.min(getThreads(), Math.max(1, to - from));
+        if (workers == 1) {
+            final List<R> results = new ArrayList<>();
+            for (int slice = from; slice < to; slice++) {
+                results.add(task.apply(slice));
+            }
+            return results;
+        }
+        final int openCvThreads = Core.getNumThreads();
+        Core.setNumThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            final List<Future<R>> futures = new ArrayList<>();
+            for (int slice = from; slice < to; slice++) {
+                final int index = slice;
+                futures.add(executor.submit(() -> task.apply(index)));
+            }
+            final List<R> results = new ArrayList<>();
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            Core.setNumThreads(openCvThreads);
+        }
+    }
+}
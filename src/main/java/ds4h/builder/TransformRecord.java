@@ -0,0 +1,59 @@
+package ds4h.builder;
+
+import org.opencv.core.Mat;
+
+/**
+ * Result of the estimation phase for a single slice: the homography that maps the coordinates of the reference image
+ * to the ones of the slice, plus what is needed to place the slice in the final stack.
+ * The render phase only reads these records, so it can be run again without detecting and matching the images again.
+ */
+class TransformRecord {
+    private final int index;
+    private final Mat homography;
+    private final int matches;
+    private final int inliers;
+
+    TransformRecord(int index, Mat homography, int matches, int inliers) {
+        this.index = index;
+        this.homography = homography;
+        this.matches = matches;
+        this.inliers = inliers;
+    }
+
+    int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the 3x3 homography, from the reference image to this slice
+     */
+    Mat getHomography() {
+        return this.homography;
+    }
+
+    double getHorizontalShift() {
+        return this.homography.get(0, 2)[0];
+    }
+
+    double getVerticalShift() {
+        return this.homography.get(1, 2)[0];
+    }
+
+    /**
+     * @return how many matches passed the ratio test
+     */
+    int getMatches() {
+        return this.matches;
+    }
+
+    /**
+     * @return how many of the matches are consistent with the homography
+     */
+    int getInliers() {
+        return this.inliers;
+    }
+
+    void release() {
+        this.homography.release();
+    }
+}
@@ -0,0 +1,191 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.Core;
+import org.opencv.core.Core.MinMaxLocResult;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.opencv.core.CvType.CV_64F;
+
+/**
+ * Coarse to fine registration: the features are found and matched on a downsampled level of the images,
+ * the resulting homography is scaled up to the full resolution and then, optionally, refined
+ * on small full resolution windows around the predicted matches.
+ */
+public class CoarseToFine {
+    // half the side of the full resolution patch searched around every match
+    private static final int PATCH_RADIUS = 16;
+    // more than this doesn't improve the homography, it only costs time
+    private static final int MAXIMUM_REFINED_MATCHES = 200;
+    // below this normalized cross correlation, the patch is not considered found
+    private static final double MINIMUM_CORRELATION = 0.7;
+    private static final double REFINEMENT_RANSAC_THRESHOLD = 1.0;
+    private static final int REFINEMENT_MAX_ITERATIONS = 2000;
+    private static final double REFINEMENT_CONFIDENCE = 0.995;
+    private static final int MINIMUM_MATCHES = 4;
+
+    private CoarseToFine() {
+    }
+
+    /**
+     * @param maximumSize the size of the biggest image
+     * @param coarseSize  the maximum length of the longest side of the coarse level
+     * @return how many times the images must be halved to get to the coarse level, 0 if they're already small enough
+     */
+    public static int getLevels(Dimension maximumSize, int coarseSize) {
+        int levels = 0;
+        int longestSide = Math.max(maximumSize.width, maximumSize.height);
+        while (longestSide > coarseSize) {
+            longestSide = (longestSide + 1) / 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * @return the image halved levels times ( blurred before every halving, so it doesn't alias ), or the image itself if levels is 0
+     */
+    public static Mat downsample(Mat image, int levels) {
+        Mat level = image;
+        for (int i = 0; i < levels; i++) {
+            final Mat halved = new Mat();
+            Imgproc.pyrDown(level, halved);
+            if (level != image) {
+                level.release();
+            }
+            level = halved;
+        }
+        return level;
+    }
+
+    /**
+     * @return the factor between the full resolution and the coarse level coordinates
+     */
+    public static double getScale(int levels) {
+        return Math.pow(2, levels);
+    }
+
+    /**
+     * Moves a homography estimated on the coarse level to the full resolution: S * H * S^-1, with S = diag(scale, scale, 1)
+     */
+    public static Mat scaleUp(Mat coarseHomography, int levels) {
+        final double scale = getScale(levels);
+        final Mat scaleMatrix = Mat.eye(3, 3, CV_64F);
+        scaleMatrix.put(0, 0, scale);
+        scaleMatrix.put(1, 1, scale);
+        final Mat inverseScaleMatrix = scaleMatrix.inv();
+        final Mat partial = new Mat();
+        final Mat homography = new Mat();
+        Core.gemm(scaleMatrix, coarseHomography, 1, new Mat(), 0, partial);
+        Core.gemm(partial, inverseScaleMatrix, 1, new Mat(), 0, homography);
+        scaleMatrix.release();
+        inverseScaleMatrix.release();
+        partial.release();
+        return homography;
+    }
+
+    /**
+     * Refines a homography scaled up from the coarse level: a full resolution patch around every source point is searched,
+     * with normalized cross correlation, near the position predicted by the homography in the moving image.
+     * The correlation peak is located with sub-pixel accuracy, then the homography is estimated again on the refined matches.
+     *
+     * @param source       the full resolution source image
+     * @param moving       the full resolution moving image
+     * @param sourcePoints the matched points of the source image, in full resolution coordinates
+     * @param homography   the homography from the source to the moving image
+     * @param searchRadius how far from the predicted position the patch is searched, in full resolution pixels
+     * @param model        the model the homography is estimated again with
+     * @return the refined homography, or the given one if there aren't enough refined matches
+     */
+    public static Mat refine(Mat source, Mat moving, List<Point> sourcePoints, Mat homography, int searchRadius, MotionModel model) {
+        if (sourcePoints.size() < MINIMUM_MATCHES) {
+            return homography;
+        }
+        final List<Point> points = new ArrayList<>();
+        // evenly spaced, so the refined matches cover the same area of the coarse ones
+        final double step = Math.max(1, (double) sourcePoints.size() / MAXIMUM_REFINED_MATCHES);
+        for (double i = 0; i < sourcePoints.size(); i += step) {
+            points.add(sourcePoints.get((int) i));
+        }
+        final MatOfPoint2f predicted = new MatOfPoint2f();
+        Core.perspectiveTransform(new MatOfPoint2f(points.toArray(new Point[0])), predicted, homography);
+        final List<Point> predictedPoints = predicted.toList();
+        final List<Point> refinedSource = new ArrayList<>();
+        final List<Point> refinedMoving = new ArrayList<>();
+        final Rect sourceBounds = new Rect(0, 0, source.cols(), source.rows());
+        final Rect movingBounds = new Rect(0, 0, moving.cols(), moving.rows());
+        for (int i = 0; i < points.size(); i++) {
+            final Point point = points.get(i);
+            final Rect patchRect = intersect(new Rect((int) point.x - PATCH_RADIUS, (int) point.y - PATCH_RADIUS, 2 * PATCH_RADIUS + 1, 2 * PATCH_RADIUS + 1), sourceBounds);
+            final Point prediction = predictedPoints.get(i);
+            final int searchSide = PATCH_RADIUS + searchRadius;
+            final Rect searchRect = intersect(new Rect((int) prediction.x - searchSide, (int) prediction.y - searchSide, 2 * searchSide + 1, 2 * searchSide + 1), movingBounds);
+            if (patchRect.width < PATCH_RADIUS || patchRect.height < PATCH_RADIUS || searchRect.width <= patchRect.width || searchRect.height <= patchRect.height) {
+                continue;
+            }
+            final Point match = findPatch(source.submat(patchRect), moving.submat(searchRect));
+            if (match != null) {
+                refinedSource.add(point);
+                refinedMoving.add(new Point(searchRect.x + match.x + point.x - patchRect.x, searchRect.y + match.y + point.y - patchRect.y));
+            }
+        }
+        predicted.release();
+        if (refinedSource.size() <= MINIMUM_MATCHES) {
+            return homography;
+        }
+        final MatOfPoint2f sourceMat = new MatOfPoint2f(refinedSource.toArray(new Point[0]));
+        final MatOfPoint2f movingMat = new MatOfPoint2f(refinedMoving.toArray(new Point[0]));
+        final Mat inliersMask = new Mat();
+        final Mat refined = model.estimate(sourceMat, movingMat, RobustEstimator.RANSAC, REFINEMENT_RANSAC_THRESHOLD, inliersMask, REFINEMENT_MAX_ITERATIONS, REFINEMENT_CONFIDENCE);
+        sourceMat.release();
+        movingMat.release();
+        inliersMask.release();
+        return refined.empty() ? homography : refined;
+    }
+
+    /**
+     * @return the position of the top left corner of the patch inside the search window, with sub-pixel accuracy, or null if it's not found
+     */
+    private static Point findPatch(Mat patch, Mat searchWindow) {
+        final Mat correlation = new Mat();
+        Imgproc.matchTemplate(searchWindow, patch, correlation, Imgproc.TM_CCOEFF_NORMED);
+        final MinMaxLocResult peak = Core.minMaxLoc(correlation);
+        if (peak.maxVal < MINIMUM_CORRELATION) {
+            correlation.release();
+            return null;
+        }
+        final int x = (int) peak.maxLoc.x;
+        final int y = (int) peak.maxLoc.y;
+        // a parabola through the peak and its two neighbours, on each axis
+        double dx = 0;
+        double dy = 0;
+        if (x > 0 && x < correlation.cols() - 1) {
+            dx = getParabolaVertex(correlation.get(y, x - 1)[0], peak.maxVal, correlation.get(y, x + 1)[0]);
+        }
+        if (y > 0 && y < correlation.rows() - 1) {
+            dy = getParabolaVertex(correlation.get(y - 1, x)[0], peak.maxVal, correlation.get(y + 1, x)[0]);
+        }
+        correlation.release();
+        return new Point(x + dx, y + dy);
+    }
+
+    private static double getParabolaVertex(double left, double center, double right) {
+        final double denominator = left - 2 * center + right;
+        return denominator == 0 ? 0 : 0.5 * (left - right) / denominator;
+    }
+
+    private static Rect intersect(Rect rect, Rect bounds) {
+        final int x = Math.max(rect.x, bounds.x);
+        final int y = Math.max(rect.y, bounds.y);
+        final int width = Math.min(rect.x + rect.width, bounds.x + bounds.width) - x;
+        final int height = Math.min(rect.y + rect.height, bounds.y + bounds.height) - y;
+        return new Rect(x, y, Math.max(0, width), Math.max(0, height));
+    }
+}
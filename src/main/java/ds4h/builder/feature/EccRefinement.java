@@ -0,0 +1,127 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+import org.opencv.video.Video;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.opencv.core.CvType.CV_32F;
+import static org.opencv.core.CvType.CV_64F;
+
+/**
+ * Intensity based registration, maximizing the enhanced correlation coefficient ( ECC ) of the two images.
+ * It runs coarse to fine on a few levels of a pyramid, from the one whose longest side is about COARSE_SIZE up to the one about FINE_SIZE,
+ * every level starting from the transformation of the previous one, and every level with capped iterations, so its time is bounded.
+ * It refines the transformation found from the features or, when the features couldn't be matched, finds one starting from the identity.
+ */
+public class EccRefinement {
+    private static final int COARSE_SIZE = 256;
+    private static final int FINE_SIZE = 2048;
+    private static final int MAXIMUM_ITERATIONS = 50;
+    private static final double EPSILON = 1e-5;
+    // the images are blurred before computing the gradients, so the noise doesn't drive the ECC
+    private static final int GAUSSIAN_FILTER_SIZE = 5;
+
+    private EccRefinement() {
+    }
+
+    /**
+     * @param reference the reference image
+     * @param moving    the image to be aligned
+     * @param initial   the 3x3 transformation from the reference image to the moving one it starts from, null for the identity
+     * @param model     the model of the transformation
+     * @return the refined 3x3 transformation, null if the ECC didn't converge even on the coarsest level
+     */
+    public static Mat refine(Mat reference, Mat moving, Mat initial, MotionModel model) {
+        final Dimension maximumSize = new Dimension(Math.max(reference.cols(), moving.cols()), Math.max(reference.rows(), moving.rows()));
+        final int coarsestLevel = CoarseToFine.getLevels(maximumSize, COARSE_SIZE);
+        final int finestLevel = CoarseToFine.getLevels(maximumSize, FINE_SIZE);
+        // the pyramids, from the finest level to the coarsest one
+        final List<Mat> referencePyramid = getPyramid(reference, finestLevel, coarsestLevel);
+        final List<Mat> movingPyramid = getPyramid(moving, finestLevel, coarsestLevel);
+        Mat transformation = initial == null ? Mat.eye(3, 3, CV_64F) : CoarseToFine.scaleUp(initial, -coarsestLevel);
+        int transformationLevel = coarsestLevel;
+        boolean converged = false;
+        for (int level = coarsestLevel; level >= finestLevel; level--) {
+            if (level < transformationLevel) {
+                transformation = scaleUpAndRelease(transformation, transformationLevel - level);
+                transformationLevel = level;
+            }
+            final Mat refined = findTransform(referencePyramid.get(level - finestLevel), movingPyramid.get(level - finestLevel), transformation, model);
+            if (refined == null) {
+                // a finer level that doesn't converge keeps the coarser result
+                break;
+            }
+            converged = true;
+            transformation.release();
+            transformation = refined;
+        }
+        release(referencePyramid, reference);
+        release(movingPyramid, moving);
+        if (!converged) {
+            transformation.release();
+            return null;
+        }
+        return scaleUpAndRelease(transformation, transformationLevel);
+    }
+
+    private static List<Mat> getPyramid(Mat image, int finestLevel, int coarsestLevel) {
+        final List<Mat> pyramid = new ArrayList<>();
+        pyramid.add(CoarseToFine.downsample(image, finestLevel));
+        for (int level = finestLevel + 1; level <= coarsestLevel; level++) {
+            pyramid.add(CoarseToFine.downsample(pyramid.get(pyramid.size() - 1), 1));
+        }
+        return pyramid;
+    }
+
+    private static void release(List<Mat> pyramid, Mat image) {
+        pyramid.stream().filter(level -> level != image).forEach(Mat::release);
+    }
+
+    /**
+     * @return the transformation maximizing the ECC on these images, null if it didn't converge
+     */
+    private static Mat findTransform(Mat reference, Mat moving, Mat transformation, MotionModel model) {
+        final boolean homography = model == MotionModel.HOMOGRAPHY;
+        // the ECC wants a single precision warp, 2x3 for the affine models
+        final Mat warpMatrix = new Mat();
+        (homography ? transformation : transformation.rowRange(0, 2)).convertTo(warpMatrix, CV_32F);
+        try {
+            Video.findTransformECC(reference, moving, warpMatrix, getMotionType(model), new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, MAXIMUM_ITERATIONS, EPSILON), new Mat(), GAUSSIAN_FILTER_SIZE);
+        } catch (CvException e) {
+            warpMatrix.release();
+            return null;
+        }
+        final Mat refined = Mat.eye(3, 3, CV_64F);
+        warpMatrix.convertTo(homography ? refined : refined.rowRange(0, 2), CV_64F);
+        warpMatrix.release();
+        return refined;
+    }
+
+    private static Mat scaleUpAndRelease(Mat transformation, int levels) {
+        if (levels == 0) {
+            return transformation;
+        }
+        final Mat scaled = CoarseToFine.scaleUp(transformation, levels);
+        transformation.release();
+        return scaled;
+    }
+
+    /**
+     * The ECC has no similarity, the affine model includes it
+     */
+    private static int getMotionType(MotionModel model) {
+        switch (model) {
+            case TRANSLATION:
+                return Video.MOTION_TRANSLATION;
+            case HOMOGRAPHY:
+                return Video.MOTION_HOMOGRAPHY;
+            default:
+                return Video.MOTION_AFFINE;
+        }
+    }
+}
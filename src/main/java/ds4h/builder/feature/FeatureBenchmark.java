@@ -0,0 +1,132 @@
+package ds4h.builder.feature;
+
+import ds4h.services.loader.Loader;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_GRAYSCALE;
+import static org.opencv.imgcodecs.Imgcodecs.imread;
+
+/**
+ * Compares the feature strategies and the matchers on a set of slides, to choose the fastest ones that still align them reliably.
+ * The recall of a matcher is the share of the brute force matches it finds too, both query the moving descriptors against the reference ones.
+ * Every slide is matched with the next one, like the automatic alignment does with the source image.
+ * Every strategy is run without a keypoint budget and with the given one, to measure the time the budget saves.
+ * Usage: FeatureBenchmark coarseSize budget slide1 slide2 ... ( the coarse size is the same of ds4h.autoalign.coarseSize, 0 for full resolution )
+ */
+public class FeatureBenchmark {
+    private static final float RATIO_THRESHOLD = 0.75f;
+    private static final double RANSAC_THRESHOLD = 3.0;
+    // below this, a pair is counted as not aligned
+    private static final int MINIMUM_INLIERS = 15;
+
+    private FeatureBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: FeatureBenchmark <coarse size> <keypoint budget> <slide> <slide> [slide ...]");
+            return;
+        }
+        new Loader().load();
+        final int coarseSize = Integer.parseInt(args[0]);
+        final int budget = Integer.parseInt(args[1]);
+        final List<Mat> slides = new ArrayList<>();
+        Dimension maximumSize = new Dimension();
+        for (int i = 2; i < args.length; i++) {
+            final Mat slide = imread(args[i], IMREAD_GRAYSCALE);
+            slides.add(slide);
+            maximumSize = new Dimension(Math.max(maximumSize.width, slide.cols()), Math.max(maximumSize.height, slide.rows()));
+        }
+        final int levels = coarseSize > 0 ? CoarseToFine.getLevels(maximumSize, coarseSize) : 0;
+        final List<Mat> levelSlides = new ArrayList<>();
+        slides.forEach(slide -> levelSlides.add(CoarseToFine.downsample(slide, levels)));
+        System.out.printf("%-14s %8s %-12s %12s %12s %10s %10s %12s %12s %8s %10s%n", "strategy", "budget", "matcher", "keypoints", "keypoints/s", "total ms", "match ms", "inliers", "inliers/s", "recall", "aligned");
+        for (FeatureStrategy strategy : FeatureStrategy.values()) {
+            try (FeatureContext context = new FeatureContext(strategy)) {
+                run(context, levelSlides, 0);
+                run(context, levelSlides, budget);
+            }
+        }
+    }
+
+    private static void run(FeatureContext context, List<Mat> slides, int budget) {
+        final List<Features> features = new ArrayList<>();
+        long keyPoints = 0;
+        final long extractionStart = System.nanoTime();
+        for (Mat slide : slides) {
+            final Features slideFeatures = context.extract(slide, budget);
+            keyPoints += slideFeatures.getKeyPoints().rows();
+            features.add(slideFeatures);
+        }
+        final double extractionSeconds = (System.nanoTime() - extractionStart) / 1e9;
+        // the exact matches of brute force are the ones the recall of the approximate matchers is measured against
+        final List<Set<Long>> exactMatches = new ArrayList<>();
+        for (MatcherType matcherType : MatcherType.values()) {
+            long inliers = 0;
+            int alignedPairs = 0;
+            long foundMatches = 0;
+            long exactMatchesCounter = 0;
+            final long matchingStart = System.nanoTime();
+            for (int i = 0; i < features.size() - 1; i++) {
+                final ReferenceMatcher matcher = new ReferenceMatcher(context, matcherType, features.get(i));
+                final List<DMatch> goodMatches = getGoodMatches(matcher.knnMatch(features.get(i + 1)));
+                matcher.release();
+                final Set<Long> pairMatches = goodMatches.stream().map(match -> ((long) match.queryIdx << 32) | match.trainIdx).collect(Collectors.toSet());
+                if (matcherType == MatcherType.BRUTE_FORCE) {
+                    exactMatches.add(pairMatches);
+                }
+                exactMatchesCounter += exactMatches.get(i).size();
+                foundMatches += pairMatches.stream().filter(exactMatches.get(i)::contains).count();
+                final int pairInliers = countInliers(goodMatches, features.get(i), features.get(i + 1));
+                inliers += pairInliers;
+                alignedPairs += pairInliers >= MINIMUM_INLIERS ? 1 : 0;
+            }
+            final double matchingSeconds = (System.nanoTime() - matchingStart) / 1e9;
+            // the inliers come from both phases, so their rate is on the whole time
+            System.out.printf("%-14s %8d %-12s %12d %12.0f %10.0f %10.0f %12d %12.0f %7.1f%% %6d/%d%n", context.getStrategy(), budget, matcherType, keyPoints, keyPoints / extractionSeconds,
+                    (extractionSeconds + matchingSeconds) * 1000, matchingSeconds * 1000, inliers, inliers / (extractionSeconds + matchingSeconds),
+                    exactMatchesCounter == 0 ? 100 : 100.0 * foundMatches / exactMatchesCounter, alignedPairs, features.size() - 1);
+        }
+        features.forEach(Features::release);
+    }
+
+    private static List<DMatch> getGoodMatches(List<MatOfDMatch> knnMatches) {
+        final List<DMatch> goodMatches = new ArrayList<>();
+        for (MatOfDMatch knnMatch : knnMatches) {
+            final DMatch[] matches = knnMatch.toArray();
+            if (matches.length > 1 && matches[0].distance < RATIO_THRESHOLD * matches[1].distance) {
+                goodMatches.add(matches[0]);
+            }
+        }
+        return goodMatches;
+    }
+
+    private static int countInliers(List<DMatch> goodMatches, Features first, Features second) {
+        if (goodMatches.size() <= 4) {
+            return 0;
+        }
+        final List<Point> firstPoints = new ArrayList<>();
+        final List<Point> secondPoints = new ArrayList<>();
+        for (DMatch match : goodMatches) {
+            firstPoints.add(first.getKeyPointsList().get(match.queryIdx).pt);
+            secondPoints.add(second.getKeyPointsList().get(match.trainIdx).pt);
+        }
+        final Mat inliersMask = new Mat();
+        Calib3d.findHomography(new MatOfPoint2f(firstPoints.toArray(new Point[0])), new MatOfPoint2f(secondPoints.toArray(new Point[0])), Calib3d.RANSAC, RANSAC_THRESHOLD, inliersMask);
+        final int inliers = inliersMask.empty() ? 0 : Core.countNonZero(inliersMask);
+        inliersMask.release();
+        return inliers;
+    }
+}
@@ -0,0 +1,110 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.Feature2D;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The native detectors, extractors and matchers of a single registration run.
+ * They're not thread safe, so a worker borrows a set for the image or the pair it's working on and then gives it back:
+ * there are never more sets than workers running at the same time, whatever pool the workers belong to,
+ * and a set is reused by all the images of the run. When the run is over, the context is closed and all the sets are dropped:
+ * the Java bindings of OpenCV free the native side of an algorithm only when it's collected, so closing doesn't free it right away,
+ * it only makes sure nothing keeps it alive ( before, every worker thread kept its own until the JVM exited ).
+ */
+public class FeatureContext implements AutoCloseable {
+    private final FeatureStrategy strategy;
+    private final Deque<Workspace> idleWorkspaces = new ArrayDeque<>();
+    private final List<Workspace> workspaces = new ArrayList<>();
+    private boolean closed = false;
+
+    public FeatureContext(FeatureStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public FeatureStrategy getStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * @param image  the image of which features are needed
+     * @param budget the maximum number of keypoints, see {@link KeyPointBudget}; 0 or less for no limit
+     * @return the keypoints of the image and their descriptors
+     */
+    public Features extract(Mat image, int budget) {
+        final Workspace workspace = this.borrow();
+        try {
+            return this.strategy.extract(workspace.detector, workspace.extractor, image, budget);
+        } finally {
+            this.giveBack(workspace);
+        }
+    }
+
+    /**
+     * Finds the two nearest neighbours of every query descriptor among the train ones, by brute force
+     */
+    void knnMatch(Mat queryDescriptors, Mat trainDescriptors, List<MatOfDMatch> knnMatches) {
+        final Workspace workspace = this.borrow();
+        try {
+            workspace.matcher.knnMatch(queryDescriptors, trainDescriptors, knnMatches, 2);
+        } finally {
+            this.giveBack(workspace);
+        }
+    }
+
+    /**
+     * Clears all the sets ( the data they hold, like the descriptors a matcher was trained with, goes right away )
+     * and drops them, their native objects are deleted when the garbage collector finalizes them
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        this.workspaces.forEach(Workspace::clear);
+        this.workspaces.clear();
+        this.idleWorkspaces.clear();
+    }
+
+    private synchronized Workspace borrow() {
+        if (this.closed) {
+            throw new IllegalStateException("The feature context of the run is already closed");
+        }
+        if (!this.idleWorkspaces.isEmpty()) {
+            return this.idleWorkspaces.pop();
+        }
+        final Workspace workspace = new Workspace(this.strategy);
+        this.workspaces.add(workspace);
+        return workspace;
+    }
+
+    private synchronized void giveBack(Workspace workspace) {
+        if (!this.closed) {
+            this.idleWorkspaces.push(workspace);
+        }
+    }
+
+    private static class Workspace {
+        private final Feature2D detector;
+        private final Feature2D extractor;
+        private final DescriptorMatcher matcher;
+
+        private Workspace(FeatureStrategy strategy) {
+            this.detector = strategy.createDetector();
+            this.extractor = strategy.createExtractor();
+            this.matcher = strategy.createMatcher();
+        }
+
+        private void clear() {
+            this.detector.clear();
+            if (this.extractor != null) {
+                this.extractor.clear();
+            }
+            this.matcher.clear();
+        }
+    }
+}
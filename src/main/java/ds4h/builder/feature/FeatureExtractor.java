@@ -0,0 +1,16 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.Mat;
+
+/**
+ * Detects the keypoints of an image and computes their descriptors
+ */
+@FunctionalInterface
+public interface FeatureExtractor {
+    /**
+     * @param index the index of the image in the builder
+     * @param image the image
+     * @return the keypoints of the image and their descriptors
+     */
+    Features extract(int index, Mat image);
+}
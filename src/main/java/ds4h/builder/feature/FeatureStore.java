@@ -0,0 +1,70 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.Mat;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Features of the images of a single registration run, indexed like the images of the builder.
+ * Every image goes through the detector and the extractor exactly once, whatever the number of pairs and passes.
+ * It can be used by several workers at the same time: the features of different images are computed concurrently,
+ * while the workers asking for the same image wait for the first one to compute them.
+ * The map only holds the pending results, the extraction runs outside of it so it never blocks the other images.
+ */
+public class FeatureStore {
+    private final FeatureExtractor extractor;
+    private final Map<Integer, CompletableFuture<Features>> features = new ConcurrentHashMap<>();
+
+    public FeatureStore(FeatureExtractor extractor) {
+        this.extractor = extractor;
+    }
+
+    /**
+     * @param index the index of the image in the builder
+     * @param image the image, used only if its features were never computed
+     * @return the features of the image
+     */
+    public Features get(int index, Mat image) {
+        final CompletableFuture<Features> pending = new CompletableFuture<>();
+        final CompletableFuture<Features> existing = this.features.putIfAbsent(index, pending);
+        if (existing != null) {
+            return join(existing);
+        }
+        try {
+            pending.complete(this.extractor.extract(index, image));
+        } catch (RuntimeException | Error e) {
+            // the waiting workers get the same failure, the next ones try again
+            this.features.remove(index, pending);
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        return pending.join();
+    }
+
+    /**
+     * Releases the native memory of all the features, to be called when the run is over
+     */
+    public synchronized void clear() {
+        this.features.values().stream()
+                .filter(pending -> pending.isDone() && !pending.isCompletedExceptionally())
+                .forEach(pending -> pending.join().release());
+        this.features.clear();
+    }
+
+    private static Features join(CompletableFuture<Features> pending) {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
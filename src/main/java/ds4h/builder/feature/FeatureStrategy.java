@@ -0,0 +1,172 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.Feature2D;
+import org.opencv.xfeatures2d.BriefDescriptorExtractor;
+import org.opencv.xfeatures2d.StarDetector;
+
+import java.util.List;
+
+import static org.opencv.core.CvType.CV_8U;
+
+/**
+ * The keypoint detector and descriptor extractor used by the automatic alignment, with the matcher fitting its descriptors:
+ * the binary descriptors are matched with the Hamming distance, the floating point ones with the L2 distance.
+ * The detectors and the matchers are not thread safe, the ones of a run are kept by its {@link FeatureContext}.
+ * A detector that describes its own keypoints does both in a single pass, so its scale space is built once,
+ * then only the keypoints within the budget and their descriptors are kept.
+ * When the detector and the extractor are two different algorithms, only the keypoints within the budget are described.
+ */
+public enum FeatureStrategy {
+    STAR_BRIEF("Star + Brief", "The original detector, slow and not very selective", true, "star;brief:bytes=32,orientation=true") {
+        @Override
+        Feature2D createDetector() {
+            return StarDetector.create();
+        }
+
+        @Override
+        Feature2D createExtractor() {
+            return BriefDescriptorExtractor.create(32, true);
+        }
+    },
+    ORB("ORB", "The fastest, good for slides with a lot of texture", true, "orb:features=budget") {
+        @Override
+        Feature2D createDetector() {
+            return org.opencv.features2d.ORB.create(ORB_UNBOUNDED_FEATURES);
+        }
+
+        @Override
+        void prepare(Feature2D detector, int budget) {
+            // ORB keeps only its best keypoints by response, the budget needs some more to spread the ones it keeps over the slide
+            ((org.opencv.features2d.ORB) detector).setMaxFeatures(budget <= 0 ? ORB_UNBOUNDED_FEATURES : (int) Math.min(ORB_UNBOUNDED_FEATURES, (long) budget * ORB_BUDGET_MARGIN));
+        }
+    },
+    AKAZE("AKAZE", "Slower than ORB, more reliable on slides with little texture", true, "akaze:default") {
+        @Override
+        Feature2D createDetector() {
+            return org.opencv.features2d.AKAZE.create();
+        }
+    },
+    SIFT("SIFT", "The slowest, the most reliable when the slides are stained differently", false, "sift:default") {
+        @Override
+        Feature2D createDetector() {
+            return org.opencv.features2d.SIFT.create();
+        }
+    };
+
+    // ORB keeps only the best 500 keypoints by default, too few for a whole slide: without a budget it keeps as many as the biggest budget
+    private static final int ORB_UNBOUNDED_FEATURES = 1000000;
+    private static final int ORB_BUDGET_MARGIN = 2;
+    private final String displayName;
+    private final String description;
+    private final boolean binary;
+    private final String parameters;
+
+    FeatureStrategy(String displayName, String description, boolean binary, String parameters) {
+        this.displayName = displayName;
+        this.description = description;
+        this.binary = binary;
+        this.parameters = parameters;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+     * @return the detector and descriptor parameters, to be changed together with them so the cached features are not reused
+     */
+    public String getParameters() {
+        return this.parameters;
+    }
+
+    /**
+     * @return true if the descriptors are binary strings, to be compared with the Hamming distance
+     */
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * @return the brute force matcher fitting the descriptors of the strategy
+     */
+    DescriptorMatcher createMatcher() {
+        return DescriptorMatcher.create(this.isBinary() ? DescriptorMatcher.BRUTEFORCE_HAMMING : DescriptorMatcher.BRUTEFORCE);
+    }
+
+    @Override
+    public String toString() {
+        return this.displayName;
+    }
+
+    abstract Feature2D createDetector();
+
+    /**
+     * @return the descriptor extractor, null if the detector describes its own keypoints
+     */
+    Feature2D createExtractor() {
+        return null;
+    }
+
+    /**
+     * Sets the detector up for the budget of the next image, nothing to do unless the detector has its own cap
+     */
+    void prepare(Feature2D detector, int budget) {
+    }
+
+    /**
+     * @param detector  a detector of this strategy, used by this thread only
+     * @param extractor an extractor of this strategy, used by this thread only; null if the detector describes its own keypoints
+     * @param image     the image of which features are needed
+     * @param budget    the maximum number of keypoints, see {@link KeyPointBudget}; 0 or less for no limit
+     * @return the keypoints of the image and their descriptors
+     */
+    Features extract(Feature2D detector, Feature2D extractor, Mat image, int budget) {
+        this.prepare(detector, budget);
+        if (extractor == null) {
+            return this.detectAndCompute(detector, image, budget);
+        }
+        final MatOfKeyPoint detectedKeyPoints = new MatOfKeyPoint();
+        detector.detect(image, detectedKeyPoints);
+        // the descriptors are computed only for the keypoints within the budget
+        final MatOfKeyPoint keyPoints = KeyPointBudget.retainBest(detectedKeyPoints, image.size(), budget);
+        if (keyPoints != detectedKeyPoints) {
+            detectedKeyPoints.release();
+        }
+        final Mat descriptors = new Mat();
+        extractor.compute(image, keyPoints, descriptors);
+        return toFeatures(keyPoints, descriptors);
+    }
+
+    private Features detectAndCompute(Feature2D detector, Mat image, int budget) {
+        final MatOfKeyPoint detectedKeyPoints = new MatOfKeyPoint();
+        final Mat detectedDescriptors = new Mat();
+        detector.detectAndCompute(image, new Mat(), detectedKeyPoints, detectedDescriptors);
+        final KeyPoint[] keyPoints = detectedKeyPoints.toArray();
+        final List<Integer> retained = KeyPointBudget.selectBest(keyPoints, image.size(), budget);
+        if (retained.size() == keyPoints.length) {
+            return toFeatures(detectedKeyPoints, detectedDescriptors);
+        }
+        // the keypoints over the budget are dropped with the rows of their descriptors
+        final KeyPoint[] retainedKeyPoints = new KeyPoint[retained.size()];
+        final Mat descriptors = new Mat(retained.size(), detectedDescriptors.cols(), detectedDescriptors.type());
+        for (int i = 0; i < retainedKeyPoints.length; i++) {
+            retainedKeyPoints[i] = keyPoints[retained.get(i)];
+            detectedDescriptors.row(retained.get(i)).copyTo(descriptors.row(i));
+        }
+        detectedKeyPoints.release();
+        detectedDescriptors.release();
+        return toFeatures(new MatOfKeyPoint(retainedKeyPoints), descriptors);
+    }
+
+    private Features toFeatures(MatOfKeyPoint keyPoints, Mat descriptors) {
+        // the Hamming matcher needs the binary descriptors as CV_8U
+        if (this.isBinary() && descriptors.type() != CV_8U) {
+            descriptors.convertTo(descriptors, CV_8U);
+        }
+        return new Features(keyPoints, descriptors);
+    }
+}
@@ -0,0 +1,44 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.util.List;
+
+/**
+ * Keypoints and descriptors of an image, computed once and shared by all the pairs the image is part of
+ */
+public class Features {
+    private final MatOfKeyPoint keyPoints;
+    private final Mat descriptors;
+    private List<KeyPoint> keyPointsList;
+
+    public Features(MatOfKeyPoint keyPoints, Mat descriptors) {
+        this.keyPoints = keyPoints;
+        this.descriptors = descriptors;
+    }
+
+    public MatOfKeyPoint getKeyPoints() {
+        return this.keyPoints;
+    }
+
+    /**
+     * @return the keypoints as a list, converted from the native Mat only the first time
+     */
+    public synchronized List<KeyPoint> getKeyPointsList() {
+        if (this.keyPointsList == null) {
+            this.keyPointsList = this.keyPoints.toList();
+        }
+        return this.keyPointsList;
+    }
+
+    public Mat getDescriptors() {
+        return this.descriptors;
+    }
+
+    public void release() {
+        this.keyPoints.release();
+        this.descriptors.release();
+    }
+}
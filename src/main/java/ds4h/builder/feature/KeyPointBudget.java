@@ -0,0 +1,82 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.KeyPoint;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Caps the keypoints of an image with grid bucketing, so the cost of matching and of RANSAC depends on the budget and not on the content.
+ * The image is split in cells that would hold a few keypoints each, then the strongest keypoint of every cell is taken,
+ * then the second strongest of every cell and so on: the textured areas can't take the whole budget and leave the rest of the slide uncovered.
+ */
+public class KeyPointBudget {
+    // how many keypoints a cell would hold if they were spread evenly
+    private static final int KEYPOINTS_PER_CELL = 8;
+
+    private KeyPointBudget() {
+    }
+
+    /**
+     * @param keyPoints the detected keypoints
+     * @param imageSize the size of the image they were detected in
+     * @param budget    the maximum number of keypoints to keep, 0 or less for no limit
+     * @return the keypoints within the budget, the given ones if there are not more than the budget
+     */
+    public static MatOfKeyPoint retainBest(MatOfKeyPoint keyPoints, Size imageSize, int budget) {
+        if (budget <= 0 || keyPoints.rows() <= budget) {
+            return keyPoints;
+        }
+        final KeyPoint[] allKeyPoints = keyPoints.toArray();
+        final List<Integer> retained = selectBest(allKeyPoints, imageSize, budget);
+        final KeyPoint[] retainedKeyPoints = new KeyPoint[retained.size()];
+        for (int i = 0; i < retainedKeyPoints.length; i++) {
+            retainedKeyPoints[i] = allKeyPoints[retained.get(i)];
+        }
+        return new MatOfKeyPoint(retainedKeyPoints);
+    }
+
+    /**
+     * Same as {@link #retainBest(MatOfKeyPoint, Size, int)}, for the keypoints already described
+     *
+     * @return the positions of the keypoints within the budget, so the rows of their descriptors can be kept too
+     */
+    public static List<Integer> selectBest(KeyPoint[] keyPoints, Size imageSize, int budget) {
+        final List<Integer> retained = new ArrayList<>();
+        if (budget <= 0 || keyPoints.length <= budget) {
+            for (int i = 0; i < keyPoints.length; i++) {
+                retained.add(i);
+            }
+            return retained;
+        }
+        final Comparator<Integer> byResponse = Comparator.comparingDouble((Integer i) -> keyPoints[i].response).reversed();
+        final double cellSide = Math.max(1, Math.sqrt(imageSize.area() * KEYPOINTS_PER_CELL / budget));
+        final int columns = (int) Math.ceil(imageSize.width / cellSide);
+        final int rows = (int) Math.ceil(imageSize.height / cellSide);
+        final List<List<Integer>> cells = new ArrayList<>();
+        for (int i = 0; i < columns * rows; i++) {
+            cells.add(new ArrayList<>());
+        }
+        for (int i = 0; i < keyPoints.length; i++) {
+            final int column = Math.min(columns - 1, Math.max(0, (int) (keyPoints[i].pt.x / cellSide)));
+            final int row = Math.min(rows - 1, Math.max(0, (int) (keyPoints[i].pt.y / cellSide)));
+            cells.get(row * columns + column).add(i);
+        }
+        cells.forEach(cell -> cell.sort(byResponse));
+        for (int rank = 0; retained.size() < budget; rank++) {
+            final List<Integer> candidates = new ArrayList<>();
+            for (List<Integer> cell : cells) {
+                if (rank < cell.size()) {
+                    candidates.add(cell.get(rank));
+                }
+            }
+            // when the budget ends in the middle of a rank, the strongest keypoints of the rank are kept
+            candidates.sort(byResponse);
+            retained.addAll(candidates.subList(0, Math.min(candidates.size(), budget - retained.size())));
+        }
+        return retained;
+    }
+}
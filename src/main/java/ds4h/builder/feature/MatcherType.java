@@ -0,0 +1,26 @@
+package ds4h.builder.feature;
+
+/**
+ * How the descriptors of the moving images are matched with the ones of the reference image
+ */
+public enum MatcherType {
+    BRUTE_FORCE("Brute force", "Exact, compares every pair of descriptors"),
+    FLANN("FLANN index", "Approximate, much faster on slides with many keypoints, finds slightly fewer matches");
+
+    private final String displayName;
+    private final String description;
+
+    MatcherType(String displayName, String description) {
+        this.displayName = displayName;
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    @Override
+    public String toString() {
+        return this.displayName;
+    }
+}
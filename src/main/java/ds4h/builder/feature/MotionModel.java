@@ -0,0 +1,123 @@
+package ds4h.builder.feature;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+import static org.opencv.core.CvType.CV_64F;
+
+/**
+ * The transformation the slices are aligned with. The fewer its degrees of freedom, the fewer the matches a sample needs,
+ * so the estimator converges in fewer iterations; histological sections rarely need more than an affine one.
+ * Every model is given back as a 3x3 matrix, the affine ones with the last row ( 0, 0, 1 ), so they can all be composed the same way.
+ */
+public enum MotionModel {
+    HOMOGRAPHY("Perspective", "8 degrees of freedom, for slides scanned at different angles", 4) {
+        @Override
+        public Mat estimate(MatOfPoint2f from, MatOfPoint2f to, RobustEstimator estimator, double threshold, Mat inliersMask, int maxIterations, double confidence) {
+            return Calib3d.findHomography(from, to, estimator.getMethod(), threshold, inliersMask, maxIterations, confidence);
+        }
+    },
+    AFFINE("Affine", "Rotation, scale, shear and translation, enough for most sections", 3) {
+        @Override
+        public Mat estimate(MatOfPoint2f from, MatOfPoint2f to, RobustEstimator estimator, double threshold, Mat inliersMask, int maxIterations, double confidence) {
+            return toHomography(Calib3d.estimateAffine2D(from, to, inliersMask, getAffineMethod(estimator), threshold, maxIterations, confidence));
+        }
+    },
+    SIMILARITY("Similarity", "Rotation, uniform scale and translation", 2) {
+        @Override
+        public Mat estimate(MatOfPoint2f from, MatOfPoint2f to, RobustEstimator estimator, double threshold, Mat inliersMask, int maxIterations, double confidence) {
+            return toHomography(Calib3d.estimateAffinePartial2D(from, to, inliersMask, getAffineMethod(estimator), threshold, maxIterations, confidence));
+        }
+    },
+    TRANSLATION("Translation", "Only shifts, for consecutive scans of the same section", 1) {
+        @Override
+        public Mat estimate(MatOfPoint2f from, MatOfPoint2f to, RobustEstimator estimator, double threshold, Mat inliersMask, int maxIterations, double confidence) {
+            // the outliers are found with a similarity, the shift is the mean one of its inliers
+            final Mat similarity = SIMILARITY.estimate(from, to, estimator, threshold, inliersMask, maxIterations, confidence);
+            if (similarity.empty()) {
+                return similarity;
+            }
+            similarity.release();
+            final Point[] fromPoints = from.toArray();
+            final Point[] toPoints = to.toArray();
+            double shiftX = 0;
+            double shiftY = 0;
+            int inliers = 0;
+            for (int i = 0; i < fromPoints.length; i++) {
+                if (inliersMask.get(i, 0)[0] != 0) {
+                    shiftX += toPoints[i].x - fromPoints[i].x;
+                    shiftY += toPoints[i].y - fromPoints[i].y;
+                    inliers++;
+                }
+            }
+            final Mat translation = Mat.eye(3, 3, CV_64F);
+            translation.put(0, 2, shiftX / inliers);
+            translation.put(1, 2, shiftY / inliers);
+            return translation;
+        }
+    };
+
+    private final String displayName;
+    private final String description;
+    private final int sampleSize;
+
+    MotionModel(String displayName, String description, int sampleSize) {
+        this.displayName = displayName;
+        this.description = description;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param from          the points of the reference image
+     * @param to            the matching points of the other image
+     * @param estimator     the robust method
+     * @param threshold     the maximum reprojection error of an inlier, in pixels
+     * @param inliersMask   filled with the matches consistent with the transformation
+     * @param maxIterations the iterations budget
+     * @param confidence    the confidence the estimator stops at
+     * @return the 3x3 transformation from the reference image to the other one, empty if it couldn't be estimated
+     */
+    public abstract Mat estimate(MatOfPoint2f from, MatOfPoint2f to, RobustEstimator estimator, double threshold, Mat inliersMask, int maxIterations, double confidence);
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+     * @return the matches a single model is estimated from
+     */
+    public int getSampleSize() {
+        return this.sampleSize;
+    }
+
+    /**
+     * @return true if the transformation keeps the parallel lines parallel, so the images can be warped with warpAffine
+     */
+    public boolean isAffine() {
+        return this != HOMOGRAPHY;
+    }
+
+    @Override
+    public String toString() {
+        return this.displayName;
+    }
+
+    /**
+     * estimateAffine2D and estimateAffinePartial2D take only RANSAC and least median as flags, the USAC methods fall back to RANSAC
+     */
+    private static int getAffineMethod(RobustEstimator estimator) {
+        return estimator == RobustEstimator.LMEDS ? Calib3d.LMEDS : Calib3d.RANSAC;
+    }
+
+    private static Mat toHomography(Mat affine) {
+        if (affine.empty()) {
+            return affine;
+        }
+        final Mat homography = Mat.eye(3, 3, CV_64F);
+        affine.copyTo(homography.rowRange(0, 2));
+        affine.release();
+        return homography;
+    }
+}
@@ -0,0 +1,42 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The intermediate Mats of a stage, released together as soon as the stage is over instead of waiting for their finalizers:
+ * the Java side of a Mat is a few bytes, so the garbage collector doesn't hurry while the native side may hold a whole plane.
+ * Meant for try-with-resources, a scope belongs to the thread that opened it.
+ */
+public class NativeScope implements AutoCloseable {
+    private final Deque<Mat> mats = new ArrayDeque<>();
+
+    /**
+     * @return the given Mat, released when the scope is closed
+     */
+    public <T extends Mat> T add(T mat) {
+        this.mats.push(mat);
+        return mat;
+    }
+
+    /**
+     * @return the given Mats, released when the scope is closed
+     */
+    public <T extends Mat> List<T> addAll(List<T> mats) {
+        mats.forEach(this::add);
+        return mats;
+    }
+
+    /**
+     * Releases the Mats, the last added first
+     */
+    @Override
+    public void close() {
+        while (!this.mats.isEmpty()) {
+            this.mats.pop().release();
+        }
+    }
+}
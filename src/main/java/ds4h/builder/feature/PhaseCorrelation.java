@@ -0,0 +1,111 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.awt.*;
+
+import static org.opencv.core.CvType.CV_32F;
+
+/**
+ * Translation only registration by phase correlation: the shift is the peak of the inverse FFT of the normalized cross power spectrum.
+ * It's found on a downsampled level of the images, windowed with a Hanning window so the borders don't add a false peak in zero,
+ * then, optionally, refined on a full resolution window in the middle of the overlap of the two images.
+ * No features are detected nor matched, so a stack whose slices differ only by a shift is aligned in a fraction of the time.
+ */
+public class PhaseCorrelation {
+    // the longest side of the level the shift is found on, its FFT takes a few milliseconds
+    private static final int COARSE_SIZE = 1024;
+    // the side of the full resolution window the shift is refined on
+    private static final int REFINEMENT_WINDOW = 1024;
+    // a smaller window has too little content to find the peak reliably
+    private static final int MINIMUM_WINDOW = 64;
+    // below this peak value the two images aren't considered related
+    private static final double MINIMUM_RESPONSE = 0.02;
+
+    private PhaseCorrelation() {
+    }
+
+    /**
+     * @param reference  the reference image
+     * @param moving     the image to be aligned
+     * @param refinement true to refine the shift at full resolution
+     * @return the shift of the moving image relative to the reference one, so that moving(p + shift) = reference(p); null if the images couldn't be related
+     */
+    public static Point estimateShift(Mat reference, Mat moving, boolean refinement) {
+        final int levels = CoarseToFine.getLevels(new Dimension(Math.max(reference.cols(), moving.cols()), Math.max(reference.rows(), moving.rows())), COARSE_SIZE);
+        final Mat referenceLevel = CoarseToFine.downsample(reference, levels);
+        final Mat movingLevel = CoarseToFine.downsample(moving, levels);
+        // the two levels must be as big as each other, the smaller one is padded on the right and on the bottom
+        final int width = Math.max(referenceLevel.cols(), movingLevel.cols());
+        final int height = Math.max(referenceLevel.rows(), movingLevel.rows());
+        final Point coarseShift = correlate(toPaddedFloat(referenceLevel, width, height), toPaddedFloat(movingLevel, width, height));
+        if (referenceLevel != reference) {
+            referenceLevel.release();
+        }
+        if (movingLevel != moving) {
+            movingLevel.release();
+        }
+        if (coarseShift == null) {
+            return null;
+        }
+        final double scale = CoarseToFine.getScale(levels);
+        final Point shift = new Point(coarseShift.x * scale, coarseShift.y * scale);
+        return refinement && levels > 0 ? refine(reference, moving, shift) : shift;
+    }
+
+    /**
+     * Correlates again a full resolution window of the reference image with the window of the moving one it was predicted to be at,
+     * so the shift gets the accuracy the downsampling lost
+     */
+    private static Point refine(Mat reference, Mat moving, Point shift) {
+        final int shiftX = (int) Math.round(shift.x);
+        final int shiftY = (int) Math.round(shift.y);
+        // the part of the reference image that is in the moving one too
+        final int left = Math.max(0, -shiftX);
+        final int top = Math.max(0, -shiftY);
+        final int right = Math.min(reference.cols(), moving.cols() - shiftX);
+        final int bottom = Math.min(reference.rows(), moving.rows() - shiftY);
+        final int side = Math.min(REFINEMENT_WINDOW, Math.min(right - left, bottom - top));
+        if (side < MINIMUM_WINDOW) {
+            return shift;
+        }
+        final Rect referenceWindow = new Rect((left + right - side) / 2, (top + bottom - side) / 2, side, side);
+        final Rect movingWindow = new Rect(referenceWindow.x + shiftX, referenceWindow.y + shiftY, side, side);
+        final Point residual = correlate(toPaddedFloat(reference.submat(referenceWindow), side, side), toPaddedFloat(moving.submat(movingWindow), side, side));
+        return residual == null ? shift : new Point(shiftX + residual.x, shiftY + residual.y);
+    }
+
+    /**
+     * @return the shift of the second image relative to the first one, null if the peak is too weak; both images are released
+     */
+    private static Point correlate(Mat first, Mat second) {
+        final Mat window = new Mat();
+        Imgproc.createHanningWindow(window, first.size(), CV_32F);
+        final double[] response = new double[1];
+        final Point shift = Imgproc.phaseCorrelate(first, second, window, response);
+        window.release();
+        first.release();
+        second.release();
+        return response[0] < MINIMUM_RESPONSE ? null : shift;
+    }
+
+    /**
+     * @return a floating point copy of the image, phaseCorrelate works only on those, padded with zeros up to the given size
+     */
+    private static Mat toPaddedFloat(Mat image, int width, int height) {
+        final Mat floatImage = new Mat();
+        image.convertTo(floatImage, CV_32F);
+        if (image.cols() == width && image.rows() == height) {
+            return floatImage;
+        }
+        final Mat paddedImage = new Mat();
+        Core.copyMakeBorder(floatImage, paddedImage, 0, height - image.rows(), 0, width - image.cols(), Core.BORDER_CONSTANT, new Scalar(0));
+        floatImage.release();
+        return paddedImage;
+    }
+}
@@ -0,0 +1,111 @@
+package ds4h.builder.feature;
+
+import org.opencv.core.DMatch;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FlannBasedMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches the features of the moving images with the ones of a single reference image.
+ * With FLANN, the index of the reference descriptors ( LSH for the binary ones, kd-trees for the others ) is built once,
+ * then every moving image only queries it; a trained index is only read, so it can be queried by several workers at the same time.
+ * Whatever the matcher, the returned matches have the reference keypoint as queryIdx and the moving one as trainIdx.
+ */
+public class ReferenceMatcher {
+    // the Java bindings can't pass the index parameters to FlannBasedMatcher, they can only be read from a file
+    private static final String LSH_PARAMETERS = "%YAML:1.0\n"
+            + "---\n"
+            + "format: 3\n"
+            + "indexParams:\n"
+            + "   - { name:algorithm, type:9, value:6 }\n" // FLANN_INDEX_LSH
+            + "   - { name:table_number, type:4, value:12 }\n"
+            + "   - { name:key_size, type:4, value:20 }\n"
+            + "   - { name:multi_probe_level, type:4, value:2 }\n"
+            + "searchParams:\n"
+            + "   - { name:checks, type:4, value:32 }\n"
+            + "   - { name:eps, type:5, value:0. }\n"
+            + "   - { name:sorted, type:8, value:1 }\n";
+    private static File lshParametersFile;
+    private final FeatureContext context;
+    private final Features reference;
+    private final DescriptorMatcher indexedMatcher;
+
+    public ReferenceMatcher(FeatureContext context, MatcherType matcherType, Features reference) {
+        this.context = context;
+        this.reference = reference;
+        if (matcherType == MatcherType.FLANN && !reference.getDescriptors().empty()) {
+            this.indexedMatcher = createFlannMatcher(context.getStrategy());
+            this.indexedMatcher.add(Collections.singletonList(reference.getDescriptors()));
+            this.indexedMatcher.train();
+        } else {
+            this.indexedMatcher = null;
+        }
+    }
+
+    /**
+     * Both matchers query the moving descriptors against the reference ones, so the ratio test is always made
+     * on the neighbours in the reference and the brute force and the FLANN matches can be compared
+     *
+     * @param moving the features of the image to be aligned
+     * @return the two nearest neighbours in the reference of every moving descriptor, with the query index on the reference
+     * and the train index on the moving image, like the rest of the alignment expects
+     */
+    public List<MatOfDMatch> knnMatch(Features moving) {
+        final List<MatOfDMatch> knnMatches = new ArrayList<>();
+        if (moving.getDescriptors().empty() || this.reference.getDescriptors().empty()) {
+            return knnMatches;
+        }
+        if (this.indexedMatcher == null) {
+            // a brute force matcher of the run, it holds no descriptors between the calls
+            this.context.knnMatch(moving.getDescriptors(), this.reference.getDescriptors(), knnMatches);
+        } else {
+            this.indexedMatcher.knnMatch(moving.getDescriptors(), knnMatches, 2);
+        }
+        // the moving image is the query: the indices are swapped back
+        for (MatOfDMatch knnMatch : knnMatches) {
+            final DMatch[] matches = knnMatch.toArray();
+            for (int i = 0; i < matches.length; i++) {
+                matches[i] = new DMatch(matches[i].trainIdx, matches[i].queryIdx, matches[i].imgIdx, matches[i].distance);
+            }
+            knnMatch.fromArray(matches);
+        }
+        return knnMatches;
+    }
+
+    public void release() {
+        if (this.indexedMatcher != null) {
+            this.indexedMatcher.clear();
+        }
+    }
+
+    private static DescriptorMatcher createFlannMatcher(FeatureStrategy strategy) {
+        final FlannBasedMatcher matcher = FlannBasedMatcher.create();
+        // the default index ( kd-trees ) only works with floating point descriptors
+        if (strategy.isBinary()) {
+            matcher.read(getLshParametersFile().getPath());
+        }
+        return matcher;
+    }
+
+    private static synchronized File getLshParametersFile() {
+        if (lshParametersFile == null) {
+            try {
+                final File file = File.createTempFile("ds4h-lsh", ".yml");
+                file.deleteOnExit();
+                Files.write(file.toPath(), LSH_PARAMETERS.getBytes(StandardCharsets.UTF_8));
+                lshParametersFile = file;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return lshParametersFile;
+    }
+}
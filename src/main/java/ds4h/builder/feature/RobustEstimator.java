@@ -0,0 +1,61 @@
+package ds4h.builder.feature;
+
+import org.opencv.calib3d.Calib3d;
+
+/**
+ * The robust method the transformation is estimated with, from the matches that passed the ratio test.
+ * OpenCV doesn't tell how many iterations a method ran, so they're estimated from the inliers found,
+ * the same way the adaptive methods decide when to stop.
+ */
+public enum RobustEstimator {
+    RANSAC("RANSAC", "The classic one, stops early only when most of the matches are inliers", Calib3d.RANSAC),
+    USAC_MAGSAC("MAGSAC++", "Less sensitive to the threshold, the most reliable with many outliers", Calib3d.USAC_MAGSAC),
+    USAC_ACCURATE("USAC accurate", "Graph-cut local optimization, more accurate than RANSAC in about the same time", Calib3d.USAC_ACCURATE),
+    LMEDS("Least median", "No threshold, fails when more than half of the matches are outliers", Calib3d.LMEDS);
+
+    private final String displayName;
+    private final String description;
+    private final int method;
+
+    RobustEstimator(String displayName, String description, int method) {
+        this.displayName = displayName;
+        this.description = description;
+        this.method = method;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+     * @return the method flag of Calib3d
+     */
+    public int getMethod() {
+        return this.method;
+    }
+
+    /**
+     * @param sampleSize    the matches a model is estimated from, 4 for a homography
+     * @param matches       the matches given to the estimator
+     * @param inliers       the inliers found
+     * @param confidence    the confidence asked to the estimator
+     * @param maxIterations the iterations budget
+     * @return about how many iterations were needed to reach the confidence, at most the budget
+     */
+    public static long getIterations(int sampleSize, int matches, int inliers, double confidence, int maxIterations) {
+        if (matches == 0 || inliers < sampleSize) {
+            return maxIterations;
+        }
+        final double goodSample = Math.pow((double) inliers / matches, sampleSize);
+        if (goodSample >= 1) {
+            return 1;
+        }
+        final double iterations = Math.ceil(Math.log(1 - confidence) / Math.log(1 - goodSample));
+        return (long) Math.max(1, Math.min(maxIterations, iterations));
+    }
+
+    @Override
+    public String toString() {
+        return this.displayName;
+    }
+}
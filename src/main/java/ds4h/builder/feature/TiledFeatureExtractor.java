@@ -0,0 +1,126 @@
+package ds4h.builder.feature;
+
+import ds4h.image.model.manager.slide.TiledSlideImage;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import org.opencv.core.Core;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.awt.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.opencv.core.CvType.CV_8UC1;
+
+/**
+ * Finds the features of a plane too big to be held as a single Mat: the plane is read through Bio-Formats in overlapping tiles,
+ * the tiles are detected and described one after the other and their keypoints are merged in the coordinates of the whole plane.
+ * The planes are already extracted by the workers of the builder, so the tiles stay on the worker of their plane and never oversubscribe the cores.
+ * Every tile keeps only the keypoints inside its core ( the tile without the overlap ), so the ones found twice in an overlap
+ * are dropped, while the keypoints near the border of a core still have the whole neighbourhood the descriptor needs.
+ */
+public class TiledFeatureExtractor {
+    // side of the core of a tile, in full resolution pixels
+    private static final int TILE_SIDE = 4096;
+    // the overlap, in pixels of the level the features are found on, must hold the largest descriptor patch
+    private static final int LEVEL_OVERLAP = 64;
+
+    private TiledFeatureExtractor() {
+    }
+
+    /**
+     * @param image    the plane, read by tiles at full resolution
+     * @param context  the detectors and descriptors of the run
+     * @param budget   the maximum number of keypoints of the whole plane, 0 or less for no limit
+     * @param levels   how many times the tiles are halved before finding their features
+     * @param scale    the keypoints are divided by this, after being moved to the level coordinates of the whole plane
+     * @return the features of the plane, in the coordinates of the level divided by the scale
+     */
+    public static Features extract(TiledSlideImage image, FeatureContext context, int budget, int levels, double scale) {
+        final Dimension planeDimension = image.getFullResolutionDimension();
+        final int columns = (planeDimension.width + TILE_SIDE - 1) / TILE_SIDE;
+        final int rows = (planeDimension.height + TILE_SIDE - 1) / TILE_SIDE;
+        final double planeArea = (double) planeDimension.width * planeDimension.height;
+        final List<Features> tilesFeatures = IntStream.range(0, columns * rows).mapToObj(tile -> {
+            final Rectangle core = new Rectangle(tile % columns * TILE_SIDE, tile / columns * TILE_SIDE, TILE_SIDE, TILE_SIDE).intersection(new Rectangle(planeDimension));
+            // every tile gets the share of the budget of its area
+            final int tileBudget = budget <= 0 ? 0 : (int) Math.ceil(budget * (core.getWidth() * core.getHeight()) / planeArea);
+            try {
+                return extractTile(image, core, context, tileBudget, levels, scale);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (FormatException e) {
+                throw new IllegalStateException(e);
+            }
+        }).collect(Collectors.toList());
+        return merge(tilesFeatures);
+    }
+
+    private static Features extractTile(TiledSlideImage image, Rectangle core, FeatureContext context, int budget, int levels, double scale) throws IOException, FormatException {
+        final double levelScale = CoarseToFine.getScale(levels);
+        final int overlap = (int) (LEVEL_OVERLAP * levelScale);
+        final Rectangle region = new Rectangle(core.x - overlap, core.y - overlap, core.width + 2 * overlap, core.height + 2 * overlap).intersection(new Rectangle(image.getFullResolutionDimension()));
+        final Mat tile = toGrayMat(image.getRegion(region));
+        final Mat level = CoarseToFine.downsample(tile, levels);
+        if (level != tile) {
+            tile.release();
+        }
+        final Features features = context.extract(level, budget);
+        level.release();
+        final KeyPoint[] keyPoints = features.getKeyPoints().toArray();
+        final List<Integer> coreRows = new ArrayList<>();
+        final List<KeyPoint> coreKeyPoints = new ArrayList<>();
+        for (int i = 0; i < keyPoints.length; i++) {
+            final double x = region.x + keyPoints[i].pt.x * levelScale;
+            final double y = region.y + keyPoints[i].pt.y * levelScale;
+            // a keypoint of the overlap belongs to the core of another tile
+            if (x >= core.x && x < core.x + core.width && y >= core.y && y < core.y + core.height) {
+                final KeyPoint keyPoint = keyPoints[i];
+                keyPoint.pt.x = x / levelScale / scale;
+                keyPoint.pt.y = y / levelScale / scale;
+                coreKeyPoints.add(keyPoint);
+                coreRows.add(i);
+            }
+        }
+        final Mat coreDescriptors = new Mat();
+        if (!coreRows.isEmpty()) {
+            final List<Mat> rows = coreRows.stream().map(features.getDescriptors()::row).collect(Collectors.toList());
+            Core.vconcat(rows, coreDescriptors);
+        }
+        features.release();
+        return new Features(new MatOfKeyPoint(coreKeyPoints.toArray(new KeyPoint[0])), coreDescriptors);
+    }
+
+    private static Features merge(List<Features> tilesFeatures) {
+        final List<KeyPoint> keyPoints = new ArrayList<>();
+        final List<Mat> descriptors = new ArrayList<>();
+        for (Features tileFeatures : tilesFeatures) {
+            keyPoints.addAll(tileFeatures.getKeyPointsList());
+            if (!tileFeatures.getDescriptors().empty()) {
+                descriptors.add(tileFeatures.getDescriptors());
+            }
+        }
+        final Mat mergedDescriptors = new Mat();
+        if (!descriptors.isEmpty()) {
+            Core.vconcat(descriptors, mergedDescriptors);
+        }
+        tilesFeatures.forEach(Features::release);
+        return new Features(new MatOfKeyPoint(keyPoints.toArray(new KeyPoint[0])), mergedDescriptors);
+    }
+
+    /**
+     * @return the region as an 8 bit grayscale Mat, the detectors work on that
+     */
+    public static Mat toGrayMat(ImageProcessor processor) {
+        final ImageProcessor grayProcessor = processor.convertToByteProcessor();
+        final Mat mat = new Mat(grayProcessor.getHeight(), grayProcessor.getWidth(), CV_8UC1);
+        mat.put(0, 0, (byte[]) grayProcessor.getPixels());
+        return mat;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * COPYRIGHT:* Copyright (c) 2021, AUSL Romagna* Azienda USL della Romagna, Italy* All rights reserved.**
+ * The informed consent published in integral part on the website of Azienda USL della Romagna
+ * (Informed Consent AUSL, prot. N. 1683), must be citied.**
+ * This material is free; you can redistribute it and/or modify it under the terms of the CC BY 4.0.*
+ * This material is distributed WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package ds4h.dialog.align.setting;
+
+import ds4h.builder.RegistrationMode;
+import ds4h.builder.feature.FeatureStrategy;
+import ds4h.builder.feature.MatcherType;
+import ds4h.builder.feature.MotionModel;
+import ds4h.builder.feature.RobustEstimator;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+public class AutoAlignSettingDialog extends JDialog {
+    private static final int MAXIMUM_KEYPOINT_BUDGET = 1000000;
+    private static final int KEYPOINT_BUDGET_STEP = 1000;
+    private static final int MAXIMUM_ITERATIONS = 100000;
+    private static final int ITERATIONS_STEP = 500;
+    private static final double MINIMUM_CONFIDENCE = 0.9;
+    private static final double MAXIMUM_CONFIDENCE = 0.9999;
+    private static final double CONFIDENCE_STEP = 0.001;
+    private static final String MESSAGE = "Choose the detector used to find the features of the images.\n The faster ones may fail on slides with little texture";
+    private final AutoAlignSettingEvent settingEvent;
+    private final JTextPane textPane;
+    private final JComboBox<FeatureStrategy> strategyComboBox;
+    private final JLabel strategyDescription;
+    private final JComboBox<MatcherType> matcherComboBox;
+    private final JLabel matcherDescription;
+    private final JSpinner budgetSpinner;
+    private final JComboBox<RegistrationMode> modeComboBox;
+    private final JLabel modeDescription;
+    private final JCheckBox globalRefinementCheckBox;
+    private final JComboBox<MotionModel> modelComboBox;
+    private final JLabel modelDescription;
+    private final JComboBox<RobustEstimator> estimatorComboBox;
+    private final JLabel estimatorDescription;
+    private final JSpinner confidenceSpinner;
+    private final JSpinner iterationsSpinner;
+    private final JCheckBox eccCheckBox;
+    private final JButton okButton;
+
+    public AutoAlignSettingDialog(JFrame frame, String title, boolean isModal, AutoAlignSettingEvent settingEvent) {
+        super(frame, title, isModal);
+        this.settingEvent = settingEvent;
+        this.strategyComboBox = new JComboBox<>(FeatureStrategy.values());
+        this.strategyDescription = new JLabel();
+        this.matcherComboBox = new JComboBox<>(MatcherType.values());
+        this.matcherDescription = new JLabel();
+        this.budgetSpinner = new JSpinner(new SpinnerNumberModel(settingEvent.getKeyPointBudget(), 0, MAXIMUM_KEYPOINT_BUDGET, KEYPOINT_BUDGET_STEP));
+        this.modeComboBox = new JComboBox<>(RegistrationMode.values());
+        this.modeDescription = new JLabel();
+        this.globalRefinementCheckBox = new JCheckBox("Refine the chain over all the matches", settingEvent.isGlobalRefinement());
+        this.modelComboBox = new JComboBox<>(MotionModel.values());
+        this.modelDescription = new JLabel();
+        this.estimatorComboBox = new JComboBox<>(RobustEstimator.values());
+        this.estimatorDescription = new JLabel();
+        this.confidenceSpinner = new JSpinner(new SpinnerNumberModel(settingEvent.getConfidence(), MINIMUM_CONFIDENCE, MAXIMUM_CONFIDENCE, CONFIDENCE_STEP));
+        this.iterationsSpinner = new JSpinner(new SpinnerNumberModel(settingEvent.getMaxIterations(), 1, MAXIMUM_ITERATIONS, ITERATIONS_STEP));
+        this.eccCheckBox = new JCheckBox("Refine on the intensities ( ECC ), recovering the slices without matches", settingEvent.isEccRefinement());
+        this.textPane = new JTextPane();
+        this.okButton = new JButton("OK");
+        this.initComboBoxes();
+        this.initBudgetSpinner();
+        this.initRegistrationMode();
+        this.initEstimator();
+    }
+
+    public boolean initIsSuccessFul() {
+        final boolean[] isSuccessFul = {true};
+        // add text
+        this.getTextPane().setText(MESSAGE);
+        this.getTextPane().setDisabledTextColor(Color.BLACK);
+        this.getTextPane().setEnabled(false);
+        this.add(this.getTextPane(), BorderLayout.NORTH);
+        // add settings
+        JPanel settingsPanel = new JPanel(new GridLayout(0, 1));
+        settingsPanel.add(this.getStrategyComboBox());
+        settingsPanel.add(this.getStrategyDescription());
+        settingsPanel.add(this.getMatcherComboBox());
+        settingsPanel.add(this.getMatcherDescription());
+        final JPanel budgetPanel = new JPanel(new BorderLayout());
+        budgetPanel.add(new JLabel("Keypoints per image ( 0 for no limit ) "), BorderLayout.WEST);
+        budgetPanel.add(this.getBudgetSpinner(), BorderLayout.CENTER);
+        settingsPanel.add(budgetPanel);
+        settingsPanel.add(this.getModeComboBox());
+        settingsPanel.add(this.getModeDescription());
+        settingsPanel.add(this.getGlobalRefinementCheckBox());
+        settingsPanel.add(this.getModelComboBox());
+        settingsPanel.add(this.getModelDescription());
+        settingsPanel.add(this.getEstimatorComboBox());
+        settingsPanel.add(this.getEstimatorDescription());
+        final JPanel confidencePanel = new JPanel(new BorderLayout());
+        confidencePanel.add(new JLabel("Confidence "), BorderLayout.WEST);
+        confidencePanel.add(this.getConfidenceSpinner(), BorderLayout.CENTER);
+        settingsPanel.add(confidencePanel);
+        final JPanel iterationsPanel = new JPanel(new BorderLayout());
+        iterationsPanel.add(new JLabel("Maximum iterations "), BorderLayout.WEST);
+        iterationsPanel.add(this.getIterationsSpinner(), BorderLayout.CENTER);
+        settingsPanel.add(iterationsPanel);
+        settingsPanel.add(this.getEccCheckBox());
+        this.add(settingsPanel, BorderLayout.CENTER);
+        // add button
+        this.add(this.getOkButton(), BorderLayout.SOUTH);
+        this.setLocationRelativeTo(null); // centers the frame
+        this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                super.windowClosing(e);
+                isSuccessFul[0] = false;
+            }
+        });
+        this.pack();
+        this.setVisible(true);
+        if (isSuccessFul[0]) {
+            this.getEvent().save();
+        }
+        return isSuccessFul[0];
+    }
+
+    public AutoAlignSettingEvent getEvent() {
+        return this.settingEvent;
+    }
+
+    public JButton getOkButton() {
+        return this.okButton;
+    }
+
+    private void initComboBoxes() {
+        this.getStrategyComboBox().setToolTipText("Detector and descriptor of the features");
+        this.getStrategyComboBox().setSelectedItem(this.getEvent().getFeatureStrategy());
+        this.getStrategyDescription().setText(this.getEvent().getFeatureStrategy().getDescription());
+        this.getStrategyComboBox().addActionListener(e -> {
+            final FeatureStrategy strategy = (FeatureStrategy) this.getStrategyComboBox().getSelectedItem();
+            if (strategy != null) {
+                this.getEvent().setFeatureStrategy(strategy);
+                this.getStrategyDescription().setText(strategy.getDescription());
+            }
+        });
+        this.getMatcherComboBox().setToolTipText("Matcher of the descriptors");
+        this.getMatcherComboBox().setSelectedItem(this.getEvent().getMatcherType());
+        this.getMatcherDescription().setText(this.getEvent().getMatcherType().getDescription());
+        this.getMatcherComboBox().addActionListener(e -> {
+            final MatcherType matcherType = (MatcherType) this.getMatcherComboBox().getSelectedItem();
+            if (matcherType != null) {
+                this.getEvent().setMatcherType(matcherType);
+                this.getMatcherDescription().setText(matcherType.getDescription());
+            }
+        });
+    }
+
+    private JComboBox<FeatureStrategy> getStrategyComboBox() {
+        return this.strategyComboBox;
+    }
+
+    private JLabel getStrategyDescription() {
+        return this.strategyDescription;
+    }
+
+    private void initBudgetSpinner() {
+        this.getBudgetSpinner().setToolTipText("The keypoints over the budget are dropped, keeping them spread on the whole image");
+        this.getBudgetSpinner().addChangeListener(e -> this.getEvent().setKeyPointBudget((Integer) this.getBudgetSpinner().getValue()));
+    }
+
+    private JSpinner getBudgetSpinner() {
+        return this.budgetSpinner;
+    }
+
+    private void initRegistrationMode() {
+        this.getModeComboBox().setToolTipText("Which slices are registered to each other");
+        this.getModeComboBox().setSelectedItem(this.getEvent().getRegistrationMode());
+        this.getModeDescription().setText(this.getEvent().getRegistrationMode().getDescription());
+        // the global refinement is meaningful only along a chain
+        this.getGlobalRefinementCheckBox().setEnabled(this.getEvent().getRegistrationMode() == RegistrationMode.CHAINED);
+        this.getModeComboBox().addActionListener(e -> {
+            final RegistrationMode mode = (RegistrationMode) this.getModeComboBox().getSelectedItem();
+            if (mode != null) {
+                this.getEvent().setRegistrationMode(mode);
+                this.getModeDescription().setText(mode.getDescription());
+                this.getGlobalRefinementCheckBox().setEnabled(mode == RegistrationMode.CHAINED);
+            }
+        });
+        this.getGlobalRefinementCheckBox().setToolTipText("Spreads the errors of the single links over the whole chain, instead of adding them up");
+        this.getGlobalRefinementCheckBox().addActionListener(e -> this.getEvent().setGlobalRefinement(this.getGlobalRefinementCheckBox().isSelected()));
+    }
+
+    private void initEstimator() {
+        this.getModelComboBox().setToolTipText("Transformation the images are aligned with");
+        this.getModelComboBox().setSelectedItem(this.getEvent().getMotionModel());
+        this.getModelDescription().setText(this.getEvent().getMotionModel().getDescription());
+        this.getModelComboBox().addActionListener(e -> {
+            final MotionModel model = (MotionModel) this.getModelComboBox().getSelectedItem();
+            if (model != null) {
+                this.getEvent().setMotionModel(model);
+                this.getModelDescription().setText(model.getDescription());
+            }
+        });
+        this.getEstimatorComboBox().setToolTipText("Robust method the transformations are estimated with");
+        this.getEstimatorComboBox().setSelectedItem(this.getEvent().getEstimator());
+        this.getEstimatorDescription().setText(this.getEvent().getEstimator().getDescription());
+        this.getEstimatorComboBox().addActionListener(e -> {
+            final RobustEstimator estimator = (RobustEstimator) this.getEstimatorComboBox().getSelectedItem();
+            if (estimator != null) {
+                this.getEvent().setEstimator(estimator);
+                this.getEstimatorDescription().setText(estimator.getDescription());
+            }
+        });
+        this.getConfidenceSpinner().setEditor(new JSpinner.NumberEditor(this.getConfidenceSpinner(), "0.0000"));
+        this.getConfidenceSpinner().setToolTipText("The estimator stops as soon as it's this sure of the transformation");
+        this.getConfidenceSpinner().addChangeListener(e -> this.getEvent().setConfidence((Double) this.getConfidenceSpinner().getValue()));
+        this.getIterationsSpinner().setToolTipText("The estimator never goes over these iterations, even if not confident enough");
+        this.getIterationsSpinner().addChangeListener(e -> this.getEvent().setMaxIterations((Integer) this.getIterationsSpinner().getValue()));
+        this.getEccCheckBox().setToolTipText("Slower, maximizes the correlation of the images on a pyramid, starting from the features or from the identity");
+        this.getEccCheckBox().addActionListener(e -> this.getEvent().setEccRefinement(this.getEccCheckBox().isSelected()));
+    }
+
+    private JCheckBox getEccCheckBox() {
+        return this.eccCheckBox;
+    }
+
+    private JComboBox<MotionModel> getModelComboBox() {
+        return this.modelComboBox;
+    }
+
+    private JLabel getModelDescription() {
+        return this.modelDescription;
+    }
+
+    private JComboBox<RobustEstimator> getEstimatorComboBox() {
+        return this.estimatorComboBox;
+    }
+
+    private JLabel getEstimatorDescription() {
+        return this.estimatorDescription;
+    }
+
+    private JSpinner getConfidenceSpinner() {
+        return this.confidenceSpinner;
+    }
+
+    private JSpinner getIterationsSpinner() {
+        return this.iterationsSpinner;
+    }
+
+    private JComboBox<RegistrationMode> getModeComboBox() {
+        return this.modeComboBox;
+    }
+
+    private JLabel getModeDescription() {
+        return this.modeDescription;
+    }
+
+    private JCheckBox getGlobalRefinementCheckBox() {
+        return this.globalRefinementCheckBox;
+    }
+
+    private JComboBox<MatcherType> getMatcherComboBox() {
+        return this.matcherComboBox;
+    }
+
+    private JLabel getMatcherDescription() {
+        return this.matcherDescription;
+    }
+
+    private JTextPane getTextPane() {
+        return this.textPane;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * COPYRIGHT:* Copyright (c) 2021, AUSL Romagna* Azienda USL della Romagna, Italy* All rights reserved.**
+ * The informed consent published in integral part on the website of Azienda USL della Romagna
+ * (Informed Consent AUSL, prot. N. 1683), must be citied.**
+ * This material is free; you can redistribute it and/or modify it under the terms of the CC BY 4.0.*
+ * This material is distributed WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package ds4h.dialog.align.setting;
+
+import ds4h.builder.RegistrationMode;
+import ds4h.builder.feature.FeatureStrategy;
+import ds4h.builder.feature.MatcherType;
+import ds4h.builder.feature.MotionModel;
+import ds4h.builder.feature.RobustEstimator;
+import ds4h.dialog.main.event.MainDialogEvent;
+import ij.Prefs;
+
+/**
+ * Settings of the automatic alignment, the last ones chosen are remembered in the ImageJ preferences
+ */
+public class AutoAlignSettingEvent implements MainDialogEvent {
+  private static final String FEATURE_STRATEGY_KEY = "ds4h.autoalign.strategy";
+  private static final String MATCHER_TYPE_KEY = "ds4h.autoalign.matcher";
+  private static final String KEYPOINT_BUDGET_KEY = "ds4h.autoalign.budget";
+  private static final String REGISTRATION_MODE_KEY = "ds4h.autoalign.mode";
+  private static final String GLOBAL_REFINEMENT_KEY = "ds4h.autoalign.globalRefinement";
+  private static final String ESTIMATOR_KEY = "ds4h.autoalign.estimator";
+  private static final String CONFIDENCE_KEY = "ds4h.autoalign.confidence";
+  private static final String MAX_ITERATIONS_KEY = "ds4h.autoalign.maxIterations";
+  private static final String MOTION_MODEL_KEY = "ds4h.autoalign.model";
+  private static final String ECC_KEY = "ds4h.autoalign.ecc";
+  private static final int DEFAULT_KEYPOINT_BUDGET = 20000;
+  private static final double DEFAULT_CONFIDENCE = 0.995;
+  private static final int DEFAULT_MAX_ITERATIONS = 2000;
+  private FeatureStrategy featureStrategy;
+  private MatcherType matcherType;
+  private int keyPointBudget;
+  private RegistrationMode registrationMode;
+  private boolean globalRefinement;
+  private RobustEstimator estimator;
+  private double confidence;
+  private int maxIterations;
+  private MotionModel motionModel;
+  private boolean eccRefinement;
+
+  public AutoAlignSettingEvent() {
+    this.featureStrategy = getSaved(FEATURE_STRATEGY_KEY, FeatureStrategy.class, FeatureStrategy.STAR_BRIEF);
+    this.matcherType = getSaved(MATCHER_TYPE_KEY, MatcherType.class, MatcherType.BRUTE_FORCE);
+    this.keyPointBudget = (int) Prefs.get(KEYPOINT_BUDGET_KEY, DEFAULT_KEYPOINT_BUDGET);
+    this.registrationMode = getSaved(REGISTRATION_MODE_KEY, RegistrationMode.class, RegistrationMode.TO_SOURCE);
+    this.globalRefinement = Prefs.get(GLOBAL_REFINEMENT_KEY, true);
+    this.estimator = getSaved(ESTIMATOR_KEY, RobustEstimator.class, RobustEstimator.USAC_MAGSAC);
+    this.confidence = Prefs.get(CONFIDENCE_KEY, DEFAULT_CONFIDENCE);
+    this.maxIterations = (int) Prefs.get(MAX_ITERATIONS_KEY, DEFAULT_MAX_ITERATIONS);
+    this.motionModel = getSaved(MOTION_MODEL_KEY, MotionModel.class, MotionModel.HOMOGRAPHY);
+    this.eccRefinement = Prefs.get(ECC_KEY, false);
+  }
+
+  public FeatureStrategy getFeatureStrategy() {
+    return this.featureStrategy;
+  }
+
+  public void setFeatureStrategy(FeatureStrategy featureStrategy) {
+    this.featureStrategy = featureStrategy;
+  }
+
+  public MatcherType getMatcherType() {
+    return this.matcherType;
+  }
+
+  public void setMatcherType(MatcherType matcherType) {
+    this.matcherType = matcherType;
+  }
+
+  /**
+   * @return the maximum number of keypoints of every image, 0 for no limit
+   */
+  public int getKeyPointBudget() {
+    return this.keyPointBudget;
+  }
+
+  public void setKeyPointBudget(int keyPointBudget) {
+    this.keyPointBudget = keyPointBudget;
+  }
+
+  public RegistrationMode getRegistrationMode() {
+    return this.registrationMode;
+  }
+
+  public void setRegistrationMode(RegistrationMode registrationMode) {
+    this.registrationMode = registrationMode;
+  }
+
+  /**
+   * @return true if the chained transformations are refined together over all the pairwise matches, used only by the chained mode
+   */
+  public boolean isGlobalRefinement() {
+    return this.globalRefinement;
+  }
+
+  public void setGlobalRefinement(boolean globalRefinement) {
+    this.globalRefinement = globalRefinement;
+  }
+
+  public RobustEstimator getEstimator() {
+    return this.estimator;
+  }
+
+  public void setEstimator(RobustEstimator estimator) {
+    this.estimator = estimator;
+  }
+
+  /**
+   * @return the probability that the estimator finds the right transformation, it stops as soon as it's reached
+   */
+  public double getConfidence() {
+    return this.confidence;
+  }
+
+  public void setConfidence(double confidence) {
+    this.confidence = confidence;
+  }
+
+  /**
+   * @return the iterations the estimator can't go over, whatever the confidence reached
+   */
+  public int getMaxIterations() {
+    return this.maxIterations;
+  }
+
+  public void setMaxIterations(int maxIterations) {
+    this.maxIterations = maxIterations;
+  }
+
+  public MotionModel getMotionModel() {
+    return this.motionModel;
+  }
+
+  public void setMotionModel(MotionModel motionModel) {
+    this.motionModel = motionModel;
+  }
+
+  /**
+   * @return true if the transformations are refined on the intensities, and the slices without matches are recovered that way
+   */
+  public boolean isEccRefinement() {
+    return this.eccRefinement;
+  }
+
+  public void setEccRefinement(boolean eccRefinement) {
+    this.eccRefinement = eccRefinement;
+  }
+
+  /**
+   * Stores the settings, so they're proposed again the next time
+   */
+  public void save() {
+    Prefs.set(FEATURE_STRATEGY_KEY, this.getFeatureStrategy().name());
+    Prefs.set(MATCHER_TYPE_KEY, this.getMatcherType().name());
+    Prefs.set(KEYPOINT_BUDGET_KEY, this.getKeyPointBudget());
+    Prefs.set(REGISTRATION_MODE_KEY, this.getRegistrationMode().name());
+    Prefs.set(GLOBAL_REFINEMENT_KEY, this.isGlobalRefinement());
+    Prefs.set(ESTIMATOR_KEY, this.getEstimator().name());
+    Prefs.set(CONFIDENCE_KEY, this.getConfidence());
+    Prefs.set(MAX_ITERATIONS_KEY, this.getMaxIterations());
+    Prefs.set(MOTION_MODEL_KEY, this.getMotionModel().name());
+    Prefs.set(ECC_KEY, this.isEccRefinement());
+  }
+
+  private static <E extends Enum<E>> E getSaved(String key, Class<E> type, E defaultValue) {
+    try {
+      return Enum.valueOf(type, Prefs.get(key, defaultValue.name()));
+    } catch (IllegalArgumentException e) {
+      return defaultValue;
+    }
+  }
+}
@@ -1,8 +1,10 @@
 package ds4h.dialog.main.event;
 
+import ds4h.dialog.align.setting.AutoAlignSettingEvent;
 
 public class AutoAlignEvent implements MainDialogEvent, RegistrationEvent {
   private final boolean keepOriginal;
+  private final AutoAlignSettingEvent settings = new AutoAlignSettingEvent();
   public AutoAlignEvent(boolean keepOriginal) {
     this.keepOriginal = keepOriginal;
   }
@@ -11,4 +13,11 @@ public class AutoAlignEvent implements MainDialogEvent, RegistrationEvent {
   public boolean isKeepOriginal() {
     return keepOriginal;
   }
+
+  /**
+   * @return the settings of the automatic alignment, filled by the settings dialog before the alignment starts
+   */
+  public AutoAlignSettingEvent getSettings() {
+    return settings;
+  }
 }
@@ -88,6 +88,8 @@ public class PreviewDialog extends ImageWindow {
             });
         }
         if (dialogEvent instanceof CloseDialogEvent) {
+            // the editor of the preview is a clone sharing the views of the main one, only its own references are released
+            this.getImagesEditor().dispose();
             SwingUtilities.invokeLater(() -> {
                 this.getMainDialog().setPreviewWindowCheckBox(false);
                 this.getMainDialog().setVisible(true);
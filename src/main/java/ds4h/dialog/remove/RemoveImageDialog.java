@@ -3,22 +3,44 @@ package ds4h.dialog.remove;
 import ds4h.image.model.manager.ImageFile;
 import ds4h.dialog.remove.event.RemoveImageEvent;
 import ij.IJ;
+import ij.Prefs;
 
 import javax.swing.*;
 import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class RemoveImageDialog extends JDialog {
+    // the thumbnails made by Bio-Formats are at most 128 pixels high, plus the caption and the margins
+    private static final int ROW_HEIGHT = 180;
     private JPanel contentPane;
     private JButton btn_delete;
     private JPanel pnl_buttons;
     private JPanel pnl_images;
     private JList<ImageFile> lst_images;
     DefaultListModel<ImageFile> model;
+    // the icons are made once per file, then reused by every repaint
+    private final Map<ImageFile, List<ImageIcon>> icons = new ConcurrentHashMap<>();
+    private final Set<ImageFile> loadingFiles = ConcurrentHashMap.newKeySet();
+    private final ExecutorService thumbsLoader = Executors.newFixedThreadPool(Math.max(1, Prefs.getThreads() / 2), runnable -> {
+        final Thread thread = new Thread(runnable, "DS4H thumbnails loader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public RemoveImageDialog(List<ImageFile> imageFiles, OnRemoveDialogEventListener listener) {
         $$$setupUI$$$();
@@ -30,7 +52,9 @@ public class RemoveImageDialog extends JDialog {
         imageFiles.forEach(model::addElement);
 
         lst_images = new JList<>(model);
-        lst_images.setCellRenderer(new ImageFileRenderer());
+        lst_images.setCellRenderer(new ImageFileRenderer(this::getIcons));
+        // with a fixed height the list doesn't need to render every row to lay itself out, only the visible rows are built
+        lst_images.setFixedCellHeight(ROW_HEIGHT);
 
         JScrollPane pane = new JScrollPane(lst_images);
         pnl_images.add(pane, BorderLayout.CENTER);
@@ -42,12 +66,42 @@ public class RemoveImageDialog extends JDialog {
         this.getInsets().set(100, 100, 100, 100);
 
         this.btn_delete.addActionListener(e -> listener.onRemoveDialogEvent(new RemoveImageEvent(lst_images.getSelectedIndex())));
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                thumbsLoader.shutdownNow();
+            }
+        });
     }
 
+    /**
+     * Never blocks the EDT: if the thumbnails of the file are not ready, they're loaded in background and the row is repainted when they arrive
+     *
+     * @param imageFile the file of the row
+     * @return the icons of the thumbnails, or null if they're still loading
+     */
+    private List<ImageIcon> getIcons(ImageFile imageFile) {
+        final List<ImageIcon> fileIcons = this.icons.get(imageFile);
+        if (fileIcons != null || this.thumbsLoader.isShutdown() || !this.loadingFiles.add(imageFile)) {
+            return fileIcons;
+        }
+        this.thumbsLoader.execute(() -> {
+            final List<BufferedImage> thumbs = imageFile.getThumbs();
+            this.icons.put(imageFile, thumbs == null ? new ArrayList<>() : thumbs.stream().map(ImageIcon::new).collect(Collectors.toList()));
+            this.loadingFiles.remove(imageFile);
+            SwingUtilities.invokeLater(() -> {
+                final int index = this.model.indexOf(imageFile);
+                if (index != -1) {
+                    this.lst_images.repaint(this.lst_images.getCellBounds(index, index));
+                }
+            });
+        });
+        return null;
+    }
 
     public void removeImageFile(int index) {
         try {
-            model.remove(index);
+            this.icons.remove(model.remove(index));
         } catch (Exception e) {
             IJ.showMessage(e.getMessage());
         }
@@ -55,6 +109,12 @@ public class RemoveImageDialog extends JDialog {
         this.update(this.getGraphics());
     }
 
+    @Override
+    public void dispose() {
+        this.thumbsLoader.shutdownNow();
+        super.dispose();
+    }
+
     /**
      * Method generated by IntelliJ IDEA GUI Designer
      * >>> IMPORTANT!! <<<
@@ -90,12 +150,21 @@ public class RemoveImageDialog extends JDialog {
      * Renderer custom di elementi JList: necessario per mostrare all'utente una serie di immagini
      */
     public static class ImageFileRenderer extends JPanel implements ListCellRenderer<ImageFile> {
+        private static final int PLACEHOLDER_SIZE = 128;
+        private static final ImageIcon PLACEHOLDER = createPlaceholder();
 
         private JLabel lbl_caption = new JLabel();
         private JPanel pnl_images = new JPanel(new FlowLayout(FlowLayout.LEFT));
         private JPanel panelText;
-
-        public ImageFileRenderer() {
+        // the labels are reused by all the rows, only their icons change
+        private final List<JLabel> thumbLabels = new ArrayList<>();
+        private final Function<ImageFile, List<ImageIcon>> iconsProvider;
+
+        /**
+         * @param iconsProvider gives the icons of a file, or null if they're not ready yet
+         */
+        public ImageFileRenderer(Function<ImageFile, List<ImageIcon>> iconsProvider) {
+            this.iconsProvider = iconsProvider;
             setLayout(new BorderLayout(5, 5));
             panelText = new JPanel(new GridLayout(0, 1));
             panelText.add(lbl_caption);
@@ -107,21 +176,28 @@ public class RemoveImageDialog extends JDialog {
             panelText.setBorder(new CompoundBorder(border, margin));
         }
 
+        private static ImageIcon createPlaceholder() {
+            final BufferedImage placeholder = new BufferedImage(PLACEHOLDER_SIZE, PLACEHOLDER_SIZE, BufferedImage.TYPE_INT_RGB);
+            final Graphics2D graphics = placeholder.createGraphics();
+            graphics.setColor(Color.LIGHT_GRAY);
+            graphics.fillRect(0, 0, PLACEHOLDER_SIZE, PLACEHOLDER_SIZE);
+            graphics.dispose();
+            return new ImageIcon(placeholder);
+        }
+
         @Override
         public Component getListCellRendererComponent(JList<? extends ImageFile> list, ImageFile value, int index, boolean isSelected, boolean cellHasFocus) {
             lbl_caption.setText(MessageFormat.format("File {0}, {1}", index + 1, value.getPathFile()));
-            lbl_caption.setFont(new Font(lbl_caption.getFont().getName(), lbl_caption.getFont().getStyle(), lbl_caption.getFont().getSize()));
             lbl_caption.setForeground(Color.DARK_GRAY);
 
+            final List<ImageIcon> fileIcons = this.iconsProvider.apply(value);
+            final int iconsCounter = fileIcons == null ? value.getImagesCounter() : fileIcons.size();
             pnl_images.removeAll();
-            value.getThumbs().forEach(thumb -> {
-                JLabel lbl = new JLabel();
-                Border border = lbl.getBorder();
-                Border margin = new EmptyBorder(0, 10, 0, 0);
-                lbl.setBorder(new CompoundBorder(border, margin));
-                lbl.setIcon(new ImageIcon(thumb));
+            for (int i = 0; i < iconsCounter; i++) {
+                final JLabel lbl = this.getThumbLabel(i);
+                lbl.setIcon(fileIcons == null ? PLACEHOLDER : fileIcons.get(i));
                 pnl_images.add(lbl);
-            });
+            }
             // when select item
             if (isSelected) {
                 setBackground(list.getSelectionBackground());
@@ -136,5 +212,16 @@ public class RemoveImageDialog extends JDialog {
             }
             return this;
         }
+
+        private JLabel getThumbLabel(int index) {
+            while (this.thumbLabels.size() <= index) {
+                JLabel lbl = new JLabel();
+                Border border = lbl.getBorder();
+                Border margin = new EmptyBorder(0, 10, 0, 0);
+                lbl.setBorder(new CompoundBorder(border, margin));
+                this.thumbLabels.add(lbl);
+            }
+            return this.thumbLabels.get(index);
+        }
     }
 }
@@ -1,68 +1,85 @@
 package ds4h.image.model.manager;
 
 import ds4h.image.model.manager.slide.SlideImage;
-import ds4h.services.ImportService;
+import ds4h.image.model.manager.slide.TiledSlideImage;
 import ij.IJ;
-import ij.ImagePlus;
 import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
 import loci.formats.FormatException;
-import loci.formats.IFormatReader;
-import loci.formats.gui.BufferedImageReader;
-import loci.plugins.in.DisplayHandler;
-import loci.plugins.in.ImagePlusReader;
-import loci.plugins.in.ImportProcess;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.stream.IntStream;
 
+/**
+ * A view over an ImageFileStore: the pixels are shared with the other views of the same file,
+ * while the RoiManagers ( and so the corners ) are owned by each view.
+ */
 public class ImageFile {
-    private final String pathFile;
+    private final ImageFileStore store;
     private final List<SlideImage> slideImages = new ArrayList<>();
+    private final List<RoiManager> roiManagers = new ArrayList<>();
     private final List<SlideImage> imagesWholeSlide = new ArrayList<>();
-    private boolean reducedImageMode;
-    private Dimension editorImageDimension;
-    private BufferedImageReader bufferedEditorImageReader;
-    private BufferedImageReader bufferedEditorImageReaderWholeSlide;
-    private ImportProcess importProcess;
-    private boolean wholeSlideInitialized = false;
-    private List<BufferedImage> cached_thumbs;
+    // once detached, the planes of this view are its own and never come from the shared ones
+    private boolean detached = false;
+    // how many editors hold this view, see retain
+    private int references = 1;
 
     public ImageFile(String pathFile) throws IOException, FormatException {
-        this.pathFile = pathFile;
-        this.generateImageReader();
+        this(new ImageFileStore(pathFile));
     }
 
-    public static long estimateMemoryUsage(String pathFile) throws IOException {
-        return ImportService.getProcessByFilePath(pathFile).getMemoryUsage();
+    private ImageFile(ImageFileStore store) {
+        this.store = store;
+        this.store.retain();
+        this.createImages();
+    }
+
+    /**
+     * @return the memory estimated by the import process that opened the file, without starting a new one
+     */
+    public long getMemoryUsage() {
+        return this.store.getMemoryUsage();
     }
 
-    private void generateImageReader() throws FormatException, IOException {
-        this.importProcess = ImportService.getProcessByFilePath(pathFile);
-        final IFormatReader reader = this.importProcess.getBaseReader();
-        final ImagePlusReader imageReader = new ImagePlusReader(this.importProcess);
-        final ImagePlus[] imps = imageReader.openImagePlus();
-        final double realSize = Arrays.stream(imps).mapToDouble(ImagePlus::getSizeInBytes).sum();
-        final double gb = realSize / (1 << 30); // 1 << 30 is the same as 1024^3
-        final double maxGb = 2.0;
-        if (gb > maxGb) {
-            IJ.showMessage("IS GB OVER 2GB");
-            this.reducedImageMode = true;
+    /**
+     * Creates a copy-on-write snapshot of this file: the reader and the decoded planes are shared,
+     * until one of the two is changed ( see detach )
+     *
+     * @return a new view on the same store
+     */
+    public ImageFile snapshot() {
+        return new ImageFile(this.store);
+    }
+
+    /**
+     * Stops sharing the decoded planes with the other views, e.g. when the pixels of one of them were edited.
+     * The planes of this view, the ones already decoded and the ones decoded later, are private copies read again from the file,
+     * that on disk is unchanged; the shared planes are left to the other views
+     */
+    public synchronized void detach() {
+        this.detached = true;
+        for (int index = 0; index < this.slideImages.size(); index++) {
+            final SlideImage slideImage = this.slideImages.get(index);
+            if (slideImage == null) {
+                continue;
+            }
+            try {
+                slideImage.setProcessor(this.store.openPrivateEditorPlane(index));
+            } catch (IOException | FormatException e) {
+                IJ.showMessage(e.getMessage());
+            }
         }
-        this.editorImageDimension = new Dimension(reader.getSizeX(), reader.getSizeY());
-        this.bufferedEditorImageReader = BufferedImageReader.makeBufferedImageReader(reader);
-        if (!wholeSlideInitialized) {
+        for (int index = 0; index < this.imagesWholeSlide.size(); index++) {
             try {
-                this.getWholeSlideImage();
-            } catch (Exception e) {
+                this.imagesWholeSlide.get(index).setProcessor(this.store.openPrivateWholeSlidePlane(index));
+            } catch (IOException | FormatException e) {
                 IJ.showMessage(e.getMessage());
             }
         }
-        this.createImages();
     }
 
     /**
@@ -73,25 +90,57 @@ public class ImageFile {
      * @return counter
      */
     public int getImagesCounter() {
-        return this.bufferedEditorImageReader.getImageCount();
+        return this.store.getImagesCounter();
     }
 
     public SlideImage getImage(int index, boolean isWholeSlide) {
-        return isWholeSlide ? this.getImagesWholeSlide().get(index) : this.getImages().get(index);
+        return isWholeSlide ? this.getImagesWholeSlide().get(index) : this.getEditorImage(index);
     }
 
+    /**
+     * Only the RoiManagers are created here, the planes are decoded lazily by getEditorImage
+     */
     private void createImages() {
-        IntStream.range(0, bufferedEditorImageReader.getImageCount()).forEach(i -> {
+        IntStream.range(0, this.getImagesCounter()).forEach(i -> {
+            this.getRoiManagers().add(new RoiManager(false));
+            this.slideImages.add(null);
+        });
+    }
+
+    /**
+     * Decodes the plane ahead of time, so the next getImage doesn't wait for the reader
+     */
+    public synchronized void prefetch(int index) {
+        if (this.slideImages.get(index) != null) {
+            return;
+        }
+        try {
+            this.createImage(index);
+        } catch (IOException | FormatException e) {
+            // no message from the background, e.g. the file was closed in the meanwhile: the error is shown if the plane is requested
+        }
+    }
+
+    /**
+     * @return if the plane was already decoded
+     */
+    public synchronized boolean isDecoded(int index) {
+        return this.slideImages.get(index) != null;
+    }
+
+    private synchronized SlideImage getEditorImage(int index) {
+        if (this.slideImages.get(index) == null) {
             try {
-                this.createImage(i);
+                this.createImage(index);
             } catch (IOException | FormatException e) {
                 IJ.showMessage(e.getMessage());
             }
-        });
+        }
+        return this.slideImages.get(index);
     }
 
     public void createImagesWholeSlide() {
-        IntStream.range(0, bufferedEditorImageReader.getImageCount()).forEach(i -> {
+        IntStream.range(0, this.getImagesCounter()).forEach(i -> {
             try {
                 this.createImageWholeSlide(i);
             } catch (IOException | FormatException e) {
@@ -102,33 +151,39 @@ public class ImageFile {
 
 
     private void createImage(int index) throws IOException, FormatException {
-        this.getImages().add(new SlideImage("", bufferedEditorImageReader.openImage(index), new RoiManager(false), this.getPathFile(), reducedImageMode));
+        final ImageProcessor plane = this.detached ? this.store.openPrivateEditorPlane(index) : this.store.getEditorPlane(index);
+        this.slideImages.set(index, new SlideImage("", plane, this.getRoiManagers().get(index), this.getPathFile(), this.store.isReducedImageMode()));
     }
 
     private void createImageWholeSlide(int index) throws IOException, FormatException {
-        this.getImagesWholeSlide().add(new SlideImage("", bufferedEditorImageReaderWholeSlide.openImage(index), this.getImages().get(index).getManager(), this.getPathFile(), this.editorImageDimension));
+        final ImageProcessor plane = this.detached ? this.store.openPrivateWholeSlidePlane(index) : this.store.getWholeSlidePlane(index);
+        if (this.store.isWholeSlideTiled()) {
+            // too big for the heap: the slide image holds an overview and reads the full resolution regions on demand
+            this.getImagesWholeSlide().add(new TiledSlideImage("", plane, this.store.getWholeSlideTiles(index), this.store.getOverviewFactor(), this.getRoiManagers().get(index), this.getPathFile(), this.store.getEditorImageDimension()));
+            return;
+        }
+        this.getImagesWholeSlide().add(new SlideImage("", plane, this.getRoiManagers().get(index), this.getPathFile(), this.store.getEditorImageDimension()));
     }
 
-    public void dispose() throws IOException {
-        bufferedEditorImageReader.close();
-        this.getImages().stream().map(SlideImage::getManager).forEach(Window::dispose);
-        this.getImagesWholeSlide().stream().map(SlideImage::getManager).forEach(Window::dispose);
+    /**
+     * Lets another editor hold this same view ( e.g. the one of the preview ), every holder must dispose it once
+     */
+    public synchronized void retain() {
+        this.references++;
     }
 
-    private void getWholeSlideImage() throws IOException, FormatException {
-        this.wholeSlideInitialized = true;
-        // If the bufferedImageReader is already using the first series (thus the images with the biggest sizes) there is no need to initialize a new bufferedImageReader. We can just reuse it as it is
-        if (bufferedEditorImageReader.getSeries() == 0) {
-            this.bufferedEditorImageReaderWholeSlide = bufferedEditorImageReader;
-            return;
+    /**
+     * Disposes this view when its last holder is done with it, the shared reader is closed only if no other view is using it
+     */
+    public void dispose() throws IOException {
+        synchronized (this) {
+            this.references--;
+            if (this.references > 0) {
+                return;
+            }
         }
-        // These 3 lines of code ↓ , are taken from the Importer plugin, the fact is that I need to check if
-        // They're actually doing something useful or not
-        DisplayHandler displayHandler = new DisplayHandler(importProcess);
-        displayHandler.displayOriginalMetadata();
-        displayHandler.displayOMEXML();
-        this.bufferedEditorImageReaderWholeSlide = BufferedImageReader.makeBufferedImageReader(importProcess.getReader());
-        this.bufferedEditorImageReaderWholeSlide.setSeries(0);
+        this.store.release();
+        this.getRoiManagers().forEach(Window::dispose);
     }
 
     /**
@@ -138,52 +193,40 @@ public class ImageFile {
      */
     public Dimension getMaximumSize() {
         Dimension maximumSize = new Dimension();
-        for (int i = 0; i < this.getImportProcess().getReader().getSeriesCount(); i++) {
-            this.getImportProcess().getReader().setSeries(i);
-            maximumSize.width = Math.max(this.getImportProcess().getReader().getSizeX(), maximumSize.width);
-            maximumSize.height = Math.max(this.getImportProcess().getReader().getSizeY(), maximumSize.height);
+        for (Dimension dimension : this.getImagesDimensions()) {
+            maximumSize.width = Math.max(dimension.width, maximumSize.width);
+            maximumSize.height = Math.max(dimension.height, maximumSize.height);
         }
         return maximumSize;
     }
 
-    public ArrayList<Dimension> getImagesDimensions() {
-        ArrayList<Dimension> dimensions = new ArrayList<>();
-        for (int i = 0; i < this.getImportProcess().getReader().getSeriesCount(); i++) {
-            this.getImportProcess().getReader().setSeries(i);
-            dimensions.add(new Dimension(this.getImportProcess().getReader().getSizeX(), this.getImportProcess().getReader().getSizeY()));
-        }
-        return dimensions;
-    }
-
-
-    private ImportProcess getImportProcess() {
-        return this.importProcess;
+    public List<Dimension> getImagesDimensions() {
+        return this.store.getImagesDimensions();
     }
 
     public List<BufferedImage> getThumbs() {
-        try {
-            // lazy initialization
-            if (this.cached_thumbs == null) {
-                this.cached_thumbs = new ArrayList<>();
-                for (int i = 0; i < bufferedEditorImageReader.getImageCount(); i++) {
-                    this.cached_thumbs.add(this.bufferedEditorImageReader.openThumbImage(i));
-                }
-            }
-        } catch (FormatException | IOException e) {
-            IJ.showMessage(e.getMessage());
-        }
-        return this.cached_thumbs;
+        return this.store.getThumbs();
     }
 
+    /**
+     * Beware: this decodes all the planes of the file, prefer getRoiManagers when only the corners are needed
+     *
+     * @return all the images of the editor
+     */
     public List<SlideImage> getImages() {
+        IntStream.range(0, this.slideImages.size()).forEach(this::getEditorImage);
         return slideImages;
     }
 
+    public List<RoiManager> getRoiManagers() {
+        return roiManagers;
+    }
+
     public List<SlideImage> getImagesWholeSlide() {
         return imagesWholeSlide;
     }
 
     public String getPathFile() {
-        return this.pathFile;
+        return this.store.getPathFile();
     }
 }
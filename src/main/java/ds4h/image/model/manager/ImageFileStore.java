@@ -0,0 +1,339 @@
+package ds4h.image.model.manager;
+
+import ds4h.image.model.manager.slide.TileCache;
+import ds4h.services.ImportService;
+import ds4h.services.ThumbnailCacheService;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.gui.BufferedImageReader;
+import loci.plugins.in.DisplayHandler;
+import loci.plugins.in.ImportProcess;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Backing store of an image file: it owns the reader and the decoded planes, and it is shared by all the ImageFile
+ * views opened on the same path ( the working one and the original one in the ImagesEditor ).
+ * It's reference counted, the reader is closed only when the last view releases it.
+ */
+class ImageFileStore {
+    private static final int WHOLE_SLIDE_SERIES = PyramidLevelSelector.FULL_RESOLUTION_SERIES;
+    // a whole slide plane bigger than this fraction of the heap is never decoded as a whole, it is read by tiles
+    private static final int TILED_PLANE_MEMORY_RATIO = 4;
+    // fraction of the heap that the overview of a tiled plane can use at most
+    private static final int OVERVIEW_MEMORY_RATIO = 16;
+    private final String pathFile;
+    private final BufferedImageReader reader;
+    private final int editorSeries;
+    private final int imagesCounter;
+    private final boolean reducedImageMode;
+    private final Dimension editorImageDimension;
+    private final List<ImageProcessor> editorPlanes;
+    private final List<ImageProcessor> wholeSlidePlanes;
+    private final List<TileCache> wholeSlideTiles;
+    private final Dimension wholeSlideDimension;
+    private final Dimension tileDimension;
+    private final int bytesPerPixel;
+    private final boolean wholeSlideTiled;
+    private final int overviewFactor;
+    private final Dimension overviewDimension;
+    // the pyramid level the overview is made from, the closest one to its size
+    private final int overviewSeries;
+    private final long memoryUsage;
+    private final List<Dimension> seriesDimensions;
+    private List<BufferedImage> cachedThumbs;
+    private int references = 0;
+    private boolean closed = false;
+
+    ImageFileStore(String pathFile) throws IOException, FormatException {
+        this.pathFile = pathFile;
+        final ImageMetadataCache.Metadata cachedMetadata = ImageMetadataCache.get(pathFile);
+        // the whole import process runs only the first time, when the file is opened again a plain reader is enough
+        final ImportProcess importProcess = cachedMetadata == null ? ImportService.getProcessByFilePath(pathFile) : null;
+        final IFormatReader baseReader = importProcess == null ? ImportService.getReaderByFilePath(pathFile) : importProcess.getBaseReader();
+        try {
+            final ImageMetadataCache.Metadata metadata = cachedMetadata == null ? readMetadata(pathFile, importProcess) : cachedMetadata;
+            this.memoryUsage = metadata.getMemoryUsage();
+            this.seriesDimensions = metadata.getSeriesDimensions();
+            // The size is read from the metadata, no plane is decoded until it's actually requested
+            final double realSize = metadata.getSizeInBytes();
+            final double gb = realSize / (1 << 30); // 1 << 30 is the same as 1024^3
+            final double maxGb = 2.0;
+            this.reducedImageMode = gb > maxGb;
+            if (this.reducedImageMode) {
+                IJ.showMessage("IS GB OVER 2GB");
+            }
+            this.editorSeries = metadata.getEditorSeries();
+            // the dimensions come from the metadata too, the reader is asked only what the cache doesn't keep
+            this.editorImageDimension = this.seriesDimensions.get(this.editorSeries);
+            this.wholeSlideDimension = this.seriesDimensions.get(WHOLE_SLIDE_SERIES);
+            baseReader.setSeries(WHOLE_SLIDE_SERIES);
+            this.tileDimension = new Dimension(baseReader.getOptimalTileWidth(), baseReader.getOptimalTileHeight());
+            this.bytesPerPixel = baseReader.getRGBChannelCount() * FormatTools.getBytesPerPixel(baseReader.getPixelType());
+            baseReader.setSeries(this.editorSeries);
+            final double wholeSlidePixels = (double) this.wholeSlideDimension.width * this.wholeSlideDimension.height;
+            final long maxMemory = Runtime.getRuntime().maxMemory();
+            this.wholeSlideTiled = wholeSlidePixels * this.bytesPerPixel > (double) maxMemory / TILED_PLANE_MEMORY_RATIO || wholeSlidePixels >= Integer.MAX_VALUE;
+            // the overview is as big as the editor image, unless even that one doesn't fit in its share of the heap
+            final int editorFactor = (int) Math.ceil(Math.max((double) this.wholeSlideDimension.width / this.editorImageDimension.width, (double) this.wholeSlideDimension.height / this.editorImageDimension.height));
+            final int memoryFactor = (int) Math.ceil(Math.sqrt(wholeSlidePixels * this.bytesPerPixel / ((double) maxMemory / OVERVIEW_MEMORY_RATIO)));
+            this.overviewFactor = Math.max(1, Math.max(editorFactor, memoryFactor));
+            this.overviewDimension = new Dimension(Math.max(1, this.wholeSlideDimension.width / this.overviewFactor), Math.max(1, this.wholeSlideDimension.height / this.overviewFactor));
+            this.overviewSeries = this.wholeSlideTiled ? PyramidLevelSelector.getOverviewSeries(baseReader, this.overviewDimension) : WHOLE_SLIDE_SERIES;
+            this.reader = BufferedImageReader.makeBufferedImageReader(baseReader);
+            this.imagesCounter = this.reader.getImageCount();
+            if (importProcess != null && this.editorSeries != WHOLE_SLIDE_SERIES) {
+                // These 3 lines of code ↓ , are taken from the Importer plugin, the fact is that I need to check if
+                // They're actually doing something useful or not
+                DisplayHandler displayHandler = new DisplayHandler(importProcess);
+                displayHandler.displayOriginalMetadata();
+                displayHandler.displayOMEXML();
+            }
+        } catch (IOException | FormatException | RuntimeException e) {
+            // the reader is still open, nobody else is going to close it
+            baseReader.close();
+            throw e;
+        }
+        this.editorPlanes = new ArrayList<>(Collections.nCopies(this.imagesCounter, null));
+        this.wholeSlidePlanes = new ArrayList<>(Collections.nCopies(this.imagesCounter, null));
+        this.wholeSlideTiles = new ArrayList<>(Collections.nCopies(this.imagesCounter, null));
+    }
+
+    /**
+     * @return the metadata of the file, read from the import process the first time the file is opened and then cached
+     */
+    private static ImageMetadataCache.Metadata readMetadata(String pathFile, ImportProcess importProcess) {
+        final IFormatReader baseReader = importProcess.getBaseReader();
+        // the editor only needs the smallest pyramid level that fills the screen, the full resolution is left to the builders
+        final int editorSeries = PyramidLevelSelector.getEditorSeries(baseReader, Toolkit.getDefaultToolkit().getScreenSize());
+        final ImageMetadataCache.Metadata metadata = new ImageMetadataCache.Metadata(importProcess.getMemoryUsage(), getSizeInBytes(baseReader), editorSeries, getSeriesDimensions(importProcess.getReader()));
+        ImageMetadataCache.put(pathFile, metadata);
+        return metadata;
+    }
+
+    /**
+     * @param reader the reader of the file, its current series is preserved
+     * @return the dimension of every series of the file
+     */
+    private static List<Dimension> getSeriesDimensions(IFormatReader reader) {
+        final int currentSeries = reader.getSeries();
+        final List<Dimension> dimensions = new ArrayList<>();
+        for (int i = 0; i < reader.getSeriesCount(); i++) {
+            reader.setSeries(i);
+            dimensions.add(new Dimension(reader.getSizeX(), reader.getSizeY()));
+        }
+        reader.setSeries(currentSeries);
+        return dimensions;
+    }
+
+    /**
+     * Computes the size of all the series of the file, using only the metadata of the reader
+     *
+     * @param reader the reader of the file, its current series is preserved
+     * @return the size in bytes of all the planes of all the series
+     */
+    private static double getSizeInBytes(IFormatReader reader) {
+        final int currentSeries = reader.getSeries();
+        double size = 0;
+        for (int i = 0; i < reader.getSeriesCount(); i++) {
+            reader.setSeries(i);
+            size += (double) reader.getSizeX() * reader.getSizeY() * reader.getImageCount() * reader.getRGBChannelCount() * FormatTools.getBytesPerPixel(reader.getPixelType());
+        }
+        reader.setSeries(currentSeries);
+        return size;
+    }
+
+    synchronized void retain() {
+        this.references++;
+    }
+
+    /**
+     * Releases a reference, when no view is left the reader is closed and the decoded planes are dropped.
+     * The tile caches are cleared after leaving the lock of the store, since a tile cache can wait for the store while reading a tile
+     */
+    void release() throws IOException {
+        final List<TileCache> tileCaches = new ArrayList<>();
+        synchronized (this) {
+            this.references--;
+            if (this.references > 0) {
+                return;
+            }
+            this.editorPlanes.replaceAll(plane -> null);
+            this.wholeSlidePlanes.replaceAll(plane -> null);
+            this.wholeSlideTiles.stream().filter(Objects::nonNull).forEach(tileCaches::add);
+            this.closed = true;
+            this.reader.close();
+        }
+        tileCaches.forEach(TileCache::clear);
+    }
+
+    /**
+     * The plane is decoded the first time it is requested, then it's shared by all the views
+     */
+    synchronized ImageProcessor getEditorPlane(int index) throws IOException, FormatException {
+        if (this.editorSeries == WHOLE_SLIDE_SERIES && this.wholeSlideTiled) {
+            return this.getWholeSlidePlane(index);
+        }
+        if (this.editorPlanes.get(index) == null) {
+            this.editorPlanes.set(index, this.openPlane(this.editorSeries, index));
+        }
+        return this.editorPlanes.get(index);
+    }
+
+    /**
+     * @return the full resolution plane or, if the plane is tiled, its overview
+     */
+    synchronized ImageProcessor getWholeSlidePlane(int index) throws IOException, FormatException {
+        if (this.wholeSlidePlanes.get(index) == null) {
+            final ImageProcessor plane;
+            if (this.wholeSlideTiled) {
+                plane = this.createOverview(index);
+            } else if (this.editorSeries == WHOLE_SLIDE_SERIES) {
+                // the editor already decoded the same plane, it's copied so the whole slide doesn't change with the editor pixels
+                plane = this.getEditorPlane(index).duplicate();
+            } else {
+                plane = this.openPlane(WHOLE_SLIDE_SERIES, index);
+            }
+            this.wholeSlidePlanes.set(index, plane);
+        }
+        return this.wholeSlidePlanes.get(index);
+    }
+
+    synchronized TileCache getWholeSlideTiles(int index) {
+        if (this.wholeSlideTiles.get(index) == null) {
+            this.wholeSlideTiles.set(index, new TileCache((x, y, width, height) -> this.openTile(WHOLE_SLIDE_SERIES, index, new Rectangle(x, y, width, height)), this.wholeSlideDimension, this.tileDimension, this.bytesPerPixel));
+        }
+        return this.wholeSlideTiles.get(index);
+    }
+
+    /**
+     * Decodes the editor plane again from the file for a single view, it never goes in the shared planes
+     */
+    synchronized ImageProcessor openPrivateEditorPlane(int index) throws IOException, FormatException {
+        if (this.editorSeries == WHOLE_SLIDE_SERIES && this.wholeSlideTiled) {
+            return this.createOverview(index);
+        }
+        return this.openPlane(this.editorSeries, index);
+    }
+
+    /**
+     * Decodes the full resolution plane ( or, if the plane is tiled, its overview ) again from the file for a single view,
+     * it never goes in the shared planes
+     */
+    synchronized ImageProcessor openPrivateWholeSlidePlane(int index) throws IOException, FormatException {
+        return this.wholeSlideTiled ? this.createOverview(index) : this.openPlane(WHOLE_SLIDE_SERIES, index);
+    }
+
+    /**
+     * The overview is read from the smallest pyramid level still as big as it, the full resolution tiles are used only if there's none
+     */
+    private ImageProcessor createOverview(int index) throws IOException, FormatException {
+        if (this.overviewSeries == WHOLE_SLIDE_SERIES) {
+            return this.getWholeSlideTiles(index).createOverview(this.overviewDimension);
+        }
+        final TileCache levelTiles = new TileCache((x, y, width, height) -> this.openTile(this.overviewSeries, index, new Rectangle(x, y, width, height)), this.seriesDimensions.get(this.overviewSeries), this.tileDimension, this.bytesPerPixel);
+        return levelTiles.createOverview(this.overviewDimension);
+    }
+
+    private ImageProcessor openPlane(int series, int index) throws IOException, FormatException {
+        this.checkOpen();
+        // the series is shared by all the readers wrapping the base one, so it's always set before reading
+        this.reader.setSeries(series);
+        final BufferedImage plane = this.reader.openImage(index);
+        this.reader.setSeries(this.editorSeries);
+        return new ImagePlus("", plane).getProcessor();
+    }
+
+    private synchronized ImageProcessor openTile(int series, int index, Rectangle bounds) throws IOException, FormatException {
+        this.checkOpen();
+        this.reader.setSeries(series);
+        final BufferedImage tile = this.reader.openImage(index, bounds.x, bounds.y, bounds.width, bounds.height);
+        this.reader.setSeries(this.editorSeries);
+        return new ImagePlus("", tile).getProcessor();
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("The file " + this.pathFile + " is already closed");
+        }
+    }
+
+    /**
+     * The thumbnails are taken from the disk cache when possible, they're created by the reader only the first time the file is seen
+     */
+    synchronized List<BufferedImage> getThumbs() {
+        try {
+            // lazy initialization
+            if (this.cachedThumbs == null) {
+                final String fingerprint = ThumbnailCacheService.getFingerprint(this.pathFile);
+                final Optional<List<BufferedImage>> diskThumbs = ThumbnailCacheService.load(fingerprint, this.editorSeries, this.imagesCounter);
+                if (diskThumbs.isPresent()) {
+                    this.cachedThumbs = diskThumbs.get();
+                    return this.cachedThumbs;
+                }
+                // the thumbnails are kept only if all of them could be read, otherwise they're read again next time
+                final List<BufferedImage> thumbs = new ArrayList<>();
+                this.reader.setSeries(this.editorSeries);
+                for (int i = 0; i < this.imagesCounter; i++) {
+                    thumbs.add(this.reader.openThumbImage(i));
+                }
+                ThumbnailCacheService.save(fingerprint, this.editorSeries, thumbs);
+                this.cachedThumbs = thumbs;
+            }
+        } catch (FormatException | IOException e) {
+            IJ.showMessage(e.getMessage());
+        }
+        return this.cachedThumbs;
+    }
+
+    /**
+     * @return the dimensions of all the series, taken from the cached metadata
+     */
+    List<Dimension> getImagesDimensions() {
+        final List<Dimension> dimensions = new ArrayList<>();
+        this.seriesDimensions.forEach(dimension -> dimensions.add(new Dimension(dimension)));
+        return dimensions;
+    }
+
+    long getMemoryUsage() {
+        return this.memoryUsage;
+    }
+
+    int getImagesCounter() {
+        return this.imagesCounter;
+    }
+
+    /**
+     * @return if the editor shows a reduced version of the image, because it's too big or because a smaller pyramid level was chosen
+     */
+    boolean isReducedImageMode() {
+        return this.reducedImageMode || this.editorSeries != WHOLE_SLIDE_SERIES;
+    }
+
+    Dimension getEditorImageDimension() {
+        return this.editorImageDimension;
+    }
+
+    boolean isWholeSlideTiled() {
+        return this.wholeSlideTiled;
+    }
+
+    int getOverviewFactor() {
+        return this.overviewFactor;
+    }
+
+    String getPathFile() {
+        return this.pathFile;
+    }
+}
@@ -0,0 +1,98 @@
+package ds4h.image.model.manager;
+
+import java.awt.*;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the metadata read from the files, so opening again the same file ( e.g. after removing it or when a project is loaded )
+ * doesn't go through the import process and all the series of the reader again.
+ * An entry is valid as long as the file on disk has the same size and the same last modified time.
+ */
+class ImageMetadataCache {
+    private static final Map<Key, Metadata> CACHE = new ConcurrentHashMap<>();
+
+    private ImageMetadataCache() {
+    }
+
+    /**
+     * @return the metadata of the file, or null if it was never read or the file has changed since then
+     */
+    static Metadata get(String pathFile) {
+        return CACHE.get(new Key(pathFile));
+    }
+
+    static void put(String pathFile, Metadata metadata) {
+        final Key key = new Key(pathFile);
+        // the entries of the older versions of the file are useless now
+        CACHE.keySet().removeIf(cachedKey -> cachedKey.pathFile.equals(key.pathFile));
+        CACHE.put(key, metadata);
+    }
+
+    /**
+     * What is read from the metadata of a file, without decoding any plane
+     */
+    static class Metadata {
+        private final long memoryUsage;
+        private final double sizeInBytes;
+        private final int editorSeries;
+        private final List<Dimension> seriesDimensions;
+
+        Metadata(long memoryUsage, double sizeInBytes, int editorSeries, List<Dimension> seriesDimensions) {
+            this.memoryUsage = memoryUsage;
+            this.sizeInBytes = sizeInBytes;
+            this.editorSeries = editorSeries;
+            this.seriesDimensions = Collections.unmodifiableList(seriesDimensions);
+        }
+
+        long getMemoryUsage() {
+            return this.memoryUsage;
+        }
+
+        double getSizeInBytes() {
+            return this.sizeInBytes;
+        }
+
+        int getEditorSeries() {
+            return this.editorSeries;
+        }
+
+        List<Dimension> getSeriesDimensions() {
+            return this.seriesDimensions;
+        }
+    }
+
+    private static class Key {
+        private final String pathFile;
+        private final long size;
+        private final long lastModified;
+
+        private Key(String pathFile) {
+            final File file = new File(pathFile);
+            this.pathFile = file.getAbsolutePath();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || this.getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return this.size == key.size && this.lastModified == key.lastModified && this.pathFile.equals(key.pathFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.pathFile, this.size, this.lastModified);
+        }
+    }
+}
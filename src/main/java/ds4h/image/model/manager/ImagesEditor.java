@@ -6,6 +6,7 @@ import ds4h.services.FileService;
 import ij.IJ;
 import ij.ImageListener;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.io.FileSaver;
 import loci.formats.FormatException;
 
@@ -19,6 +20,12 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 public class ImagesEditor implements Observable {
@@ -28,43 +35,124 @@ public class ImagesEditor implements Observable {
     private final PropertyChangeSupport support = new PropertyChangeSupport(this);
     private final List<ImageFile> imageFiles = new ArrayList<>();
     private final List<ImageFile> originalImageFiles = new ArrayList<>();
+    private final PlaneIndex planeIndex = new PlaneIndex(this.imageFiles);
+    private final PlaneIndex originalPlaneIndex = new PlaneIndex(this.originalImageFiles);
     private int currentPosition = -1;
+    // how many planes before and after the current one are decoded in background, it can be changed from the ImageJ preferences
+    private static final String PREFETCH_RADIUS_KEY = "ds4h.prefetch.radius";
+    private static final int DEFAULT_PREFETCH_RADIUS = 1;
+    private int prefetchRadius = (int) Prefs.get(PREFETCH_RADIUS_KEY, DEFAULT_PREFETCH_RADIUS);
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "DS4H planes prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Future<?>> prefetchTasks = new ArrayList<>();
+    private final AtomicInteger prefetchGeneration = new AtomicInteger();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchMisses = new AtomicLong();
+    private int lastCountedPosition = -1;
+    private boolean disposed = false;
 
 
     public ImagesEditor(List<String> filesPath) throws ImageOversizeException, FormatException, IOException {
+        for (ImageFile imageFile : openFiles(filesPath)) {
+            this.addImageFile(imageFile);
+        }
+    }
+
+    /**
+     * Opens the files on a bounded pool, so the metadata of several files is parsed at the same time.
+     * The result keeps the order of the paths, whatever file is opened first
+     *
+     * @param filesPath the paths chosen by the user
+     * @return the opened files, if one of them can't be opened the others are disposed
+     */
+    private static List<ImageFile> openFiles(List<String> filesPath) throws FormatException, IOException {
+        final int threads = Math.max(1, Math.min(Prefs.getThreads(), filesPath.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicInteger openedCounter = new AtomicInteger();
+        final List<Future<ImageFile>> futures = new ArrayList<>();
         for (String filePath : filesPath) {
-            this.addFile(filePath);
-            this.addFileToOriginalList(filePath);
+            futures.add(executor.submit(() -> {
+                final ImageFile imageFile = new ImageFile(filePath);
+                final int opened = openedCounter.incrementAndGet();
+                IJ.showStatus(MessageFormat.format("Opened {0} ({1}/{2})", new File(filePath).getName(), opened, filesPath.size()));
+                IJ.showProgress(opened, filesPath.size());
+                return imageFile;
+            }));
+        }
+        executor.shutdown();
+        final List<ImageFile> imageFiles = new ArrayList<>();
+        Throwable failure = null;
+        for (Future<ImageFile> future : futures) {
+            try {
+                imageFiles.add(future.get());
+            } catch (ExecutionException e) {
+                failure = failure == null ? e.getCause() : failure;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure == null) {
+            return imageFiles;
+        }
+        imageFiles.forEach(ImagesEditor::disposeImageFile);
+        if (failure instanceof FormatException) {
+            throw (FormatException) failure;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
         }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw new IOException(failure);
     }
 
     /**
-     * Copy Constructor to clone this class
+     * Copy Constructor to clone this class: the views are shared with the given editor, so the clone must be disposed too
      * @param editor
      */
     public ImagesEditor(ImagesEditor editor) {
+        editor.getImageFiles().forEach(ImageFile::retain);
+        editor.getOriginalImageFiles().forEach(ImageFile::retain);
         imageFiles.addAll(editor.getImageFiles());
         originalImageFiles.addAll(editor.getOriginalImageFiles());
         currentPosition = editor.getCurrentPosition();
     }
 
-    public void addFile(String pathFile) throws IOException, FormatException {
+    /**
+     * Adds the file to the working list and its snapshot to the original list, the two share the same reader and pixels
+     *
+     * @param pathFile
+     * @return the working file just added
+     */
+    public ImageFile addFile(String pathFile) throws IOException, FormatException {
         ImageFile imageFile = new ImageFile(pathFile);
+        this.addImageFile(imageFile);
+        return imageFile;
+    }
+
+    private void addImageFile(ImageFile imageFile) {
         this.getImageFiles().add(imageFile);
+        this.getOriginalImageFiles().add(imageFile.snapshot());
+        this.planeIndex.invalidate();
+        this.originalPlaneIndex.invalidate();
         this.attachListener(imageFile);
     }
 
     private void addFile(String pathFile, int index) throws IOException, FormatException {
         ImageFile imageFile = new ImageFile(pathFile);
         this.getImageFiles().add(index, imageFile);
+        this.planeIndex.invalidate();
         this.attachListener(imageFile);
     }
 
-    public void addFileToOriginalList(String path) throws IOException, FormatException {
-        ImageFile imageFile = new ImageFile(path);
-        this.getOriginalImageFiles().add(imageFile);
-    }
-
     private void attachListener(ImageFile file) {
         ImagePlus.addImageListener(new ImageListener() {
             @Override
@@ -91,11 +179,19 @@ public class ImagesEditor implements Observable {
     private void handleUpdatedImageChanges(ImagePlus imagePlus, ImageFile file) {
         String path = this.saveUpdatedImage(imagePlus, file);
         try {
-            int indexToRemove = this.getCurrentPosition();
+            // the current position is the index of a plane, the files are found through the plane indexes
+            final int fileIndex = this.planeIndex.getFileIndex(this.getCurrentPosition());
+            final ImageFile originalImageFile = this.originalPlaneIndex.getFile(this.getCurrentPosition());
+            if (fileIndex < 0 || originalImageFile == null) {
+                IJ.showMessage("The updated image is not in the editor anymore");
+                return;
+            }
+            // the original is a snapshot, it must not see the changes made on the pixels it was sharing
+            originalImageFile.detach();
             // delete from stack the old one
-            this.removeImageFile(indexToRemove);
+            this.removeImageFile(fileIndex);
             // add new one
-            this.addFile(path, indexToRemove);
+            this.addFile(path, fileIndex);
             this.firePropertyChange("updatedImage", file.getPathFile(), path);
         } catch (IOException | FormatException e) {
             IJ.showMessage(e.getMessage());
@@ -108,12 +204,23 @@ public class ImagesEditor implements Observable {
      * @param index
      */
     public void removeImageFile(int index) {
-        this.getImageFiles().remove(index);
+        this.cancelPrefetch();
+        disposeImageFile(this.getImageFiles().remove(index));
+        this.planeIndex.invalidate();
         this.currentPosition = this.getCurrentPosition() >= this.getAllImagesCounterSum() ? this.getAllImagesCounterSum() - 1 : this.getCurrentPosition();
     }
 
     public void removeOriginalImageFile(int imageFileIndex) {
-        this.getOriginalImageFiles().remove(imageFileIndex);
+        disposeImageFile(this.getOriginalImageFiles().remove(imageFileIndex));
+        this.originalPlaneIndex.invalidate();
+    }
+
+    private static void disposeImageFile(ImageFile imageFile) {
+        try {
+            imageFile.dispose();
+        } catch (IOException e) {
+            IJ.showMessage(e.getMessage());
+        }
     }
 
 
@@ -155,7 +262,7 @@ public class ImagesEditor implements Observable {
     }
 
     public int getAllImagesCounterSum() {
-        return this.getImageFiles().stream().mapToInt(ImageFile::getImagesCounter).sum();
+        return this.planeIndex.getPlanesCounter();
     }
 
 
@@ -167,13 +274,98 @@ public class ImagesEditor implements Observable {
     public void next() {
         if (hasNext()) {
             this.nextIndex();
+            this.prefetchNeighbours();
         }
     }
 
     public SlideImage getCurrentImage() {
+        this.countPrefetchOutcome();
         return getImage(this.getCurrentPosition(), false, false);
     }
 
+    /**
+     * Decodes in background the planes around the current one, so moving to them doesn't wait for the reader.
+     * The work scheduled for a previous position is cancelled, if it's not started yet.
+     * The planes are resolved here, on the thread that changes the files, so the prefetcher never reads the list nor the index
+     */
+    private synchronized void prefetchNeighbours() {
+        this.prefetchTasks.forEach(task -> task.cancel(false));
+        this.prefetchTasks.clear();
+        if (this.prefetcher.isShutdown()) {
+            return;
+        }
+        final int generation = this.prefetchGeneration.incrementAndGet();
+        final int position = this.getCurrentPosition();
+        final int counter = this.getAllImagesCounterSum();
+        // the nearest planes first, they're the most likely to be requested
+        for (int distance = 1; distance <= this.getPrefetchRadius(); distance++) {
+            for (int index : new int[]{position + distance, position - distance}) {
+                if (index < 0 || index >= counter) {
+                    continue;
+                }
+                final ImageFile file = this.planeIndex.getFile(index);
+                final int localIndex = this.planeIndex.getLocalIndex(index);
+                this.prefetchTasks.add(this.prefetcher.submit(() -> {
+                    // the user already moved somewhere else
+                    if (generation != this.prefetchGeneration.get()) {
+                        return;
+                    }
+                    prefetch(file, localIndex);
+                }));
+            }
+        }
+    }
+
+    private static void prefetch(ImageFile file, int localIndex) {
+        try {
+            file.prefetch(localIndex);
+        } catch (RuntimeException e) {
+            // the file was removed and closed while prefetching, the plane isn't needed anymore
+        }
+    }
+
+    private void cancelPrefetch() {
+        this.prefetchGeneration.incrementAndGet();
+        synchronized (this) {
+            this.prefetchTasks.forEach(task -> task.cancel(false));
+            this.prefetchTasks.clear();
+        }
+    }
+
+    /**
+     * Counts, once per position, if the current plane was already decoded when it was requested
+     */
+    private void countPrefetchOutcome() {
+        final int position = this.getCurrentPosition();
+        if (position == this.lastCountedPosition) {
+            return;
+        }
+        this.lastCountedPosition = position;
+        final ImageFile file = this.planeIndex.getFile(position);
+        if (file != null) {
+            (file.isDecoded(this.planeIndex.getLocalIndex(position)) ? this.prefetchHits : this.prefetchMisses).incrementAndGet();
+        }
+    }
+
+    public long getPrefetchHits() {
+        return this.prefetchHits.get();
+    }
+
+    public long getPrefetchMisses() {
+        return this.prefetchMisses.get();
+    }
+
+    public int getPrefetchRadius() {
+        return this.prefetchRadius;
+    }
+
+    /**
+     * @param prefetchRadius how many planes before and after the current one are decoded in background, 0 disables the prefetch
+     */
+    public void setPrefetchRadius(int prefetchRadius) {
+        this.prefetchRadius = Math.max(0, prefetchRadius);
+    }
+
     public SlideImage getCurrentOriginalImage() {
         return getImage(this.getCurrentPosition(), false, true);
     }
@@ -195,19 +387,11 @@ public class ImagesEditor implements Observable {
     }
 
     private SlideImage getImage(int index, boolean wholeSlide, boolean isOriginal) {
-        int progressive = 0;
-        ImageFile imageFile = null;
-        List<ImageFile> imageFileList = isOriginal ? this.getOriginalImageFiles() : this.getImageFiles();
-        for (ImageFile file : imageFileList) {
-            if (progressive + file.getImagesCounter() > index) {
-                imageFile = file;
-                break;
-            }
-            progressive += file.getImagesCounter();
-        }
+        final PlaneIndex filesPlaneIndex = isOriginal ? this.originalPlaneIndex : this.planeIndex;
+        final ImageFile imageFile = filesPlaneIndex.getFile(index);
         try {
             if (imageFile != null) {
-                final SlideImage image = imageFile.getImage(index - progressive, wholeSlide);
+                final SlideImage image = imageFile.getImage(filesPlaneIndex.getLocalIndex(index), wholeSlide);
                 if (!isOriginal) {
                     image.setTitle(MessageFormat.format("Editor Image {0}/{1}", index + 1, this.getAllImagesCounterSum()));
                 }
@@ -228,6 +412,7 @@ public class ImagesEditor implements Observable {
     public void previous() {
         if (this.hasPrevious()) {
             this.previousIndex();
+            this.prefetchNeighbours();
         }
     }
 
@@ -242,13 +427,14 @@ public class ImagesEditor implements Observable {
     }
 
     public void dispose() {
-        Stream.of(this.getImageFiles(), this.getOriginalImageFiles()).flatMap(Collection::parallelStream).forEachOrdered(imageFile -> {
-            try {
-                imageFile.dispose();
-            } catch (IOException e) {
-                IJ.showMessage(e.getMessage());
-            }
-        });
+        // every view is released once, even if the editor is disposed again
+        if (this.disposed) {
+            return;
+        }
+        this.disposed = true;
+        this.cancelPrefetch();
+        this.prefetcher.shutdownNow();
+        Stream.of(this.getImageFiles(), this.getOriginalImageFiles()).flatMap(Collection::parallelStream).forEachOrdered(ImagesEditor::disposeImageFile);
     }
 
     public List<Dimension> getImagesDimensions() {
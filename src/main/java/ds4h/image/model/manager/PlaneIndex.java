@@ -0,0 +1,75 @@
+package ds4h.image.model.manager;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the global index of a plane ( the one used by the editor and the builders ) to its file and to its index inside the file.
+ * The prefix sums of the planes counters are rebuilt only after the list of files has changed,
+ * so a lookup costs the same whatever the number of open files.
+ */
+class PlaneIndex {
+    private final List<ImageFile> imageFiles;
+    // fileOffsets[i] is the global index of the first plane of the i-th file, the last one is the planes counter
+    private int[] fileOffsets = new int[]{0};
+    // planeFiles[index] is the position, in the list, of the file of the plane
+    private int[] planeFiles = new int[0];
+    private boolean valid = false;
+
+    PlaneIndex(List<ImageFile> imageFiles) {
+        this.imageFiles = imageFiles;
+    }
+
+    /**
+     * Must be called every time a file is added to, removed from or replaced in the list
+     */
+    synchronized void invalidate() {
+        this.valid = false;
+    }
+
+    synchronized int getPlanesCounter() {
+        this.rebuildIfInvalid();
+        return this.fileOffsets[this.fileOffsets.length - 1];
+    }
+
+    /**
+     * @return the file of the plane, or null if the index is out of range
+     */
+    synchronized ImageFile getFile(int index) {
+        this.rebuildIfInvalid();
+        return index < 0 || index >= this.planeFiles.length ? null : this.imageFiles.get(this.planeFiles[index]);
+    }
+
+    /**
+     * @return the position of the file of the plane in the list, or -1 if the index is out of range
+     */
+    synchronized int getFileIndex(int index) {
+        this.rebuildIfInvalid();
+        return index < 0 || index >= this.planeFiles.length ? -1 : this.planeFiles[index];
+    }
+
+    /**
+     * @return the index of the plane inside its file
+     */
+    synchronized int getLocalIndex(int index) {
+        this.rebuildIfInvalid();
+        return index - this.fileOffsets[this.planeFiles[index]];
+    }
+
+    private void rebuildIfInvalid() {
+        if (this.valid) {
+            return;
+        }
+        final int[] offsets = new int[this.imageFiles.size() + 1];
+        for (int i = 0; i < this.imageFiles.size(); i++) {
+            offsets[i + 1] = offsets[i] + this.imageFiles.get(i).getImagesCounter();
+        }
+        final int[] files = new int[offsets[offsets.length - 1]];
+        for (int i = 0; i < this.imageFiles.size(); i++) {
+            Arrays.fill(files, offsets[i], offsets[i + 1], i);
+        }
+        this.fileOffsets = offsets;
+        this.planeFiles = files;
+        this.valid = true;
+    }
+}
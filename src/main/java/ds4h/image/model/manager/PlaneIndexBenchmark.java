@@ -0,0 +1,106 @@
+package ds4h.image.model.manager;
+
+import loci.formats.FormatException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the lookup of a plane through the PlaneIndex with the linear scan of the files the ImagesEditor used before,
+ * on lists of a growing number of files.
+ * The given files are opened once and their snapshots are repeated until the list has the required size, so no plane is decoded.
+ * Every list is walked in order, like the builders do, and then at random, like the editor does.
+ * Usage: PlaneIndexBenchmark lookups file1 file2 ...
+ */
+public class PlaneIndexBenchmark {
+    private static final int[] FILES_COUNTERS = {1, 10, 100, 1000};
+    private static final long SEED = 42;
+
+    private PlaneIndexBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, FormatException {
+        if (args.length < 2) {
+            System.out.println("Usage: PlaneIndexBenchmark <lookups> <file> [file ...]");
+            return;
+        }
+        final int lookups = Integer.parseInt(args[0]);
+        final List<ImageFile> openedFiles = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            openedFiles.add(new ImageFile(args[i]));
+        }
+        System.out.printf("%8s %10s %-12s %-8s %12s %10s %12s%n", "files", "planes", "lookup", "order", "lookups", "total ms", "ns/lookup");
+        for (int filesCounter : FILES_COUNTERS) {
+            final List<ImageFile> imageFiles = new ArrayList<>();
+            for (int i = 0; i < filesCounter; i++) {
+                imageFiles.add(openedFiles.get(i % openedFiles.size()).snapshot());
+            }
+            run(imageFiles, lookups);
+            for (ImageFile imageFile : imageFiles) {
+                imageFile.dispose();
+            }
+        }
+        for (ImageFile imageFile : openedFiles) {
+            imageFile.dispose();
+        }
+    }
+
+    private static void run(List<ImageFile> imageFiles, int lookups) {
+        final PlaneIndex planeIndex = new PlaneIndex(imageFiles);
+        final int planesCounter = planeIndex.getPlanesCounter();
+        if (planesCounter == 0) {
+            return;
+        }
+        final int[] sequentialIndexes = new int[lookups];
+        final int[] randomIndexes = new int[lookups];
+        final Random random = new Random(SEED);
+        for (int i = 0; i < lookups; i++) {
+            sequentialIndexes[i] = i % planesCounter;
+            randomIndexes[i] = random.nextInt(planesCounter);
+        }
+        // the checksum keeps the lookups from being optimized away, both ways must give the same one
+        final long scanChecksum = measure(imageFiles.size(), planesCounter, "linear scan", "ordered", sequentialIndexes, index -> scan(imageFiles, index))
+                + measure(imageFiles.size(), planesCounter, "linear scan", "random", randomIndexes, index -> scan(imageFiles, index));
+        final long indexChecksum = measure(imageFiles.size(), planesCounter, "plane index", "ordered", sequentialIndexes, index -> lookUp(planeIndex, index))
+                + measure(imageFiles.size(), planesCounter, "plane index", "random", randomIndexes, index -> lookUp(planeIndex, index));
+        if (scanChecksum != indexChecksum) {
+            System.out.println("The plane index and the linear scan resolve different planes");
+        }
+    }
+
+    private static long measure(int filesCounter, int planesCounter, String lookup, String order, int[] indexes, Lookup method) {
+        long checksum = 0;
+        final long start = System.nanoTime();
+        for (int index : indexes) {
+            checksum += method.resolve(index);
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.printf("%8d %10d %-12s %-8s %12d %10.0f %12.1f%n", filesCounter, planesCounter, lookup, order, indexes.length, elapsed / 1e6, (double) elapsed / indexes.length);
+        return checksum;
+    }
+
+    /**
+     * The lookup of the ImagesEditor before the PlaneIndex: the counters of the files are summed until the one holding the plane
+     */
+    private static long scan(List<ImageFile> imageFiles, int index) {
+        int progressive = 0;
+        for (int i = 0; i < imageFiles.size(); i++) {
+            final int imagesCounter = imageFiles.get(i).getImagesCounter();
+            if (progressive + imagesCounter > index) {
+                return ((long) i << 32) | (index - progressive);
+            }
+            progressive += imagesCounter;
+        }
+        return -1;
+    }
+
+    private static long lookUp(PlaneIndex planeIndex, int index) {
+        return ((long) planeIndex.getFileIndex(index) << 32) | planeIndex.getLocalIndex(index);
+    }
+
+    private interface Lookup {
+        long resolve(int index);
+    }
+}
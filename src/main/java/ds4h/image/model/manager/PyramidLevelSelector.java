@@ -0,0 +1,79 @@
+package ds4h.image.model.manager;
+
+import loci.formats.IFormatReader;
+
+import java.awt.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Chooses which series of a pyramidal file is used by the editor.
+ * The dialogs only need the smallest pyramid level that still fills the canvas, the full resolution one ( series 0 )
+ * is reserved for the final warp made by the builders.
+ */
+class PyramidLevelSelector {
+    static final int FULL_RESOLUTION_SERIES = 0;
+    // two series with a width/height ratio closer than this are considered levels of the same pyramid
+    private static final double ASPECT_RATIO_TOLERANCE = 0.01;
+
+    private PyramidLevelSelector() {
+    }
+
+    /**
+     * @param reader the reader of the file, its current series is preserved
+     * @param canvas the size of the canvas where the image will be shown
+     * @return the smallest pyramid level that fills the canvas, or the current series if the file is not a pyramid
+     */
+    static int getEditorSeries(IFormatReader reader, Dimension canvas) {
+        final int currentSeries = reader.getSeries();
+        // once fitted to the window, a level fills the canvas if it doesn't need to be magnified
+        final int selectedSeries = getSmallestLevel(reader, series -> reader.getSizeX() >= canvas.width || reader.getSizeY() >= canvas.height);
+        reader.setSeries(currentSeries);
+        return isPyramid(reader) ? selectedSeries : currentSeries;
+    }
+
+    /**
+     * @param reader   the reader of the file, its current series is preserved
+     * @param overview the size of the overview of the full resolution plane
+     * @return the smallest pyramid level that is still at least as big as the overview, the full resolution one if there's none
+     */
+    static int getOverviewSeries(IFormatReader reader, Dimension overview) {
+        final int currentSeries = reader.getSeries();
+        final int selectedSeries = getSmallestLevel(reader, series -> reader.getSizeX() >= overview.width && reader.getSizeY() >= overview.height);
+        reader.setSeries(currentSeries);
+        return selectedSeries;
+    }
+
+    private static boolean isPyramid(IFormatReader reader) {
+        final int currentSeries = reader.getSeries();
+        final boolean isPyramid = getSmallestLevel(reader, series -> true) != FULL_RESOLUTION_SERIES;
+        reader.setSeries(currentSeries);
+        return isPyramid;
+    }
+
+    /**
+     * @param accepted tells if the level, that is the current series of the reader, can be used
+     * @return the smallest accepted level, or the full resolution one; the series of the reader is left changed
+     */
+    private static int getSmallestLevel(IFormatReader reader, IntPredicate accepted) {
+        reader.setSeries(FULL_RESOLUTION_SERIES);
+        final int fullWidth = reader.getSizeX();
+        final int fullHeight = reader.getSizeY();
+        final int imageCount = reader.getImageCount();
+        final int pixelType = reader.getPixelType();
+        final double aspectRatio = (double) fullWidth / fullHeight;
+        int selectedSeries = FULL_RESOLUTION_SERIES;
+        int selectedWidth = fullWidth;
+        for (int series = FULL_RESOLUTION_SERIES + 1; series < reader.getSeriesCount(); series++) {
+            reader.setSeries(series);
+            final int width = reader.getSizeX();
+            final int height = reader.getSizeY();
+            // label and macro images are series too, but they are not levels of the pyramid
+            final boolean isLevel = width < fullWidth && reader.getImageCount() == imageCount && reader.getPixelType() == pixelType && Math.abs((double) width / height - aspectRatio) / aspectRatio < ASPECT_RATIO_TOLERANCE;
+            if (isLevel && width < selectedWidth && accepted.test(series)) {
+                selectedSeries = series;
+                selectedWidth = width;
+            }
+        }
+        return selectedSeries;
+    }
+}
@@ -5,6 +5,7 @@ import ds4h.observer.Observable;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
 
 import java.awt.*;
 import java.beans.PropertyChangeSupport;
@@ -42,6 +43,24 @@ public class SlideImage extends ImagePlus implements Observable {
         this.reducedImageDimensions = reduceImageDimensions;
     }
 
+    /**
+     * The processor is not copied, so it can be shared by the slide images of different views of the same file
+     */
+    public SlideImage(String text, ImageProcessor processor, RoiManager manager, String filePath, boolean isReduced) {
+        super(text, processor);
+        this.manager = manager;
+        this.filePath = filePath;
+        this.isReduced = isReduced;
+    }
+
+    public SlideImage(String text, ImageProcessor processor, RoiManager manager, String filePath, Dimension reduceImageDimensions) {
+        super(text, processor);
+        this.manager = manager;
+        this.filePath = filePath;
+        this.isReduced = true;
+        this.reducedImageDimensions = reduceImageDimensions;
+    }
+
     public RoiManager getManager() {
         return this.manager;
     }
@@ -67,6 +86,22 @@ public class SlideImage extends ImagePlus implements Observable {
         return reducedImageDimensions;
     }
 
+    /**
+     * The corners are placed on the editor image, that can be a smaller pyramid level than this one
+     *
+     * @return how many pixels of this image correspond to a pixel of the editor image, on the x axis
+     */
+    public double getEditorScaleX() {
+        return this.reducedImageDimensions == null ? 1 : (double) this.getWidth() / this.reducedImageDimensions.width;
+    }
+
+    /**
+     * @return how many pixels of this image correspond to a pixel of the editor image, on the y axis
+     */
+    public double getEditorScaleY() {
+        return this.reducedImageDimensions == null ? 1 : (double) this.getHeight() / this.reducedImageDimensions.height;
+    }
+
     public String getFilePath() {
         return filePath;
     }
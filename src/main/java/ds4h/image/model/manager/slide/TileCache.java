@@ -0,0 +1,140 @@
+package ds4h.image.model.manager.slide;
+
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the decoded tiles of a plane, the tiles are read on demand through a TileReader.
+ * It lets the plugin work on planes bigger than the heap: only the tiles of the requested regions are kept in memory.
+ */
+public class TileCache {
+    // fraction of the heap that all the tiles of a plane can use at most
+    private static final int MEMORY_RATIO = 8;
+    private static final int MINIMUM_TILES = 4;
+    private final TileReader tileReader;
+    private final Dimension planeDimension;
+    private final Dimension tileDimension;
+    private final Map<Point, ImageProcessor> tiles;
+
+    public TileCache(TileReader tileReader, Dimension planeDimension, Dimension tileDimension, int bytesPerPixel) {
+        this.tileReader = tileReader;
+        this.planeDimension = planeDimension;
+        this.tileDimension = tileDimension;
+        final long tileBytes = (long) tileDimension.width * tileDimension.height * bytesPerPixel;
+        final int maximumTiles = (int) Math.max(MINIMUM_TILES, Runtime.getRuntime().maxMemory() / MEMORY_RATIO / Math.max(tileBytes, 1));
+        // access order, so the eldest entry is always the least recently used tile
+        this.tiles = new LinkedHashMap<Point, ImageProcessor>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Point, ImageProcessor> eldest) {
+                return this.size() > maximumTiles;
+            }
+        };
+    }
+
+    /**
+     * @param column the column of the tile in the grid
+     * @param row    the row of the tile in the grid
+     * @return the decoded tile, read from the file only if it's not already cached
+     */
+    public ImageProcessor getTile(int column, int row) throws IOException, FormatException {
+        final Point key = new Point(column, row);
+        synchronized (this) {
+            final ImageProcessor cachedTile = this.tiles.get(key);
+            if (cachedTile != null) {
+                return cachedTile;
+            }
+        }
+        // the tile is read outside of the lock of the cache, the reader has its own and they must never be nested
+        final Rectangle bounds = this.getTileBounds(column, row);
+        final ImageProcessor tile = this.tileReader.read(bounds.x, bounds.y, bounds.width, bounds.height);
+        synchronized (this) {
+            // another worker could have read the same tile in the meanwhile, the first one wins
+            final ImageProcessor cachedTile = this.tiles.putIfAbsent(key, tile);
+            return cachedTile != null ? cachedTile : tile;
+        }
+    }
+
+    /**
+     * Assembles a region of the plane at full resolution, using only the tiles that overlap it
+     *
+     * @param region the region of the plane, in full resolution coordinates
+     * @return a processor as big as the region ( clipped to the plane bounds )
+     */
+    public ImageProcessor getRegion(Rectangle region) throws IOException, FormatException {
+        final Rectangle clipped = region.intersection(new Rectangle(this.planeDimension));
+        ImageProcessor result = null;
+        for (int row = clipped.y / this.tileDimension.height; row * this.tileDimension.height < clipped.y + clipped.height; row++) {
+            for (int column = clipped.x / this.tileDimension.width; column * this.tileDimension.width < clipped.x + clipped.width; column++) {
+                final ImageProcessor tile = this.getTile(column, row);
+                final Rectangle tileBounds = this.getTileBounds(column, row);
+                final Rectangle overlap = tileBounds.intersection(clipped);
+                if (result == null) {
+                    result = tile.createProcessor(clipped.width, clipped.height);
+                }
+                tile.setRoi(overlap.x - tileBounds.x, overlap.y - tileBounds.y, overlap.width, overlap.height);
+                result.insert(tile.crop(), overlap.x - clipped.x, overlap.y - clipped.y);
+                tile.resetRoi();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a subsampled version of the whole plane, reading it tile by tile
+     * so the plane is never held in memory
+     *
+     * @param overviewDimension the size of the overview, not bigger than the plane
+     * @return the overview of the plane
+     */
+    public ImageProcessor createOverview(Dimension overviewDimension) throws IOException, FormatException {
+        ImageProcessor overview = null;
+        final double scaleX = (double) overviewDimension.width / this.planeDimension.width;
+        final double scaleY = (double) overviewDimension.height / this.planeDimension.height;
+        final int columns = (this.planeDimension.width + this.tileDimension.width - 1) / this.tileDimension.width;
+        final int rows = (this.planeDimension.height + this.tileDimension.height - 1) / this.tileDimension.height;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                final Rectangle bounds = this.getTileBounds(column, row);
+                // the overview tiles are not cached, they are read once
+                final ImageProcessor tile = this.tileReader.read(bounds.x, bounds.y, bounds.width, bounds.height);
+                tile.setInterpolationMethod(ImageProcessor.NONE);
+                // the edges of the tiles are rounded on the overview, so the tiles neither overlap nor leave gaps between them
+                final int x = (int) Math.round(bounds.x * scaleX);
+                final int y = (int) Math.round(bounds.y * scaleY);
+                final int width = Math.max(1, (int) Math.round((bounds.x + bounds.width) * scaleX) - x);
+                final int height = Math.max(1, (int) Math.round((bounds.y + bounds.height) * scaleY) - y);
+                if (overview == null) {
+                    overview = tile.createProcessor(overviewDimension.width, overviewDimension.height);
+                }
+                overview.insert(tile.resize(width, height), x, y);
+            }
+        }
+        return overview;
+    }
+
+    private Rectangle getTileBounds(int column, int row) {
+        final int x = column * this.tileDimension.width;
+        final int y = row * this.tileDimension.height;
+        return new Rectangle(x, y, Math.min(this.tileDimension.width, this.planeDimension.width - x), Math.min(this.tileDimension.height, this.planeDimension.height - y));
+    }
+
+    public Dimension getPlaneDimension() {
+        return this.planeDimension;
+    }
+
+    public synchronized void clear() {
+        this.tiles.clear();
+    }
+
+    /**
+     * Reads a region of the plane at full resolution
+     */
+    public interface TileReader {
+        ImageProcessor read(int x, int y, int width, int height) throws IOException, FormatException;
+    }
+}
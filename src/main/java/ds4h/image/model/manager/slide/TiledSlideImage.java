@@ -0,0 +1,43 @@
+package ds4h.image.model.manager.slide;
+
+import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+
+import java.awt.*;
+import java.io.IOException;
+
+/**
+ * Whole slide image too big to be held in memory as a single plane.
+ * As an ImagePlus it shows a subsampled overview of the plane, while the full resolution pixels
+ * are read on demand, region by region, through the TileCache.
+ */
+public class TiledSlideImage extends SlideImage {
+    private final TileCache tileCache;
+    private final int overviewFactor;
+
+    public TiledSlideImage(String text, ImageProcessor overview, TileCache tileCache, int overviewFactor, RoiManager manager, String filePath, Dimension reduceImageDimensions) {
+        super(text, overview, manager, filePath, reduceImageDimensions);
+        this.tileCache = tileCache;
+        this.overviewFactor = overviewFactor;
+    }
+
+    /**
+     * @param region the region to read, in full resolution coordinates
+     * @return the full resolution pixels of the region
+     */
+    public ImageProcessor getRegion(Rectangle region) throws IOException, FormatException {
+        return this.tileCache.getRegion(region);
+    }
+
+    /**
+     * @return how many full resolution pixels are represented by a pixel of the overview, on each axis
+     */
+    public int getOverviewFactor() {
+        return this.overviewFactor;
+    }
+
+    public Dimension getFullResolutionDimension() {
+        return this.tileCache.getPlaneDimension();
+    }
+}
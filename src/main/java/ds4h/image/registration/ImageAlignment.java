@@ -288,7 +288,7 @@ public class ImageAlignment implements OnMainDialogEventListener, OnAlignDialogE
         final SlideImage currentSlideImage = this.getMainDialog().getCurrentImage();
         final Roi[] roisOfCurrentImage = currentSlideImage.getManager().getRoisAsArray();
         final List<ImageFile> images = this.getEditor().getImageFiles();
-        final List<RoiManager> roiManagers = images.stream().flatMap(imageFile -> imageFile.getImages().stream()).map(SlideImage::getManager).collect(Collectors.toList());
+        final List<RoiManager> roiManagers = images.stream().flatMap(imageFile -> imageFile.getRoiManagers().stream()).collect(Collectors.toList());
 
         for (RoiManager roiManager : roiManagers) {
             if (roiManager.getRoisAsArray().length == 0) {
@@ -390,13 +390,13 @@ public class ImageAlignment implements OnMainDialogEventListener, OnAlignDialogE
     private void addFile(AddFileEvent dialogEvent) {
         String pathFile = dialogEvent.getFilePath();
         try {
-            long memory = ImageFile.estimateMemoryUsage(pathFile);
-            this.totalMemory += memory;
-            if (this.getTotalMemory() >= Runtime.getRuntime().maxMemory()) {
-                JOptionPane.showMessageDialog(null, INSUFFICIENT_MEMORY_MESSAGE, INSUFFICIENT_MEMORY_TITLE, JOptionPane.ERROR_MESSAGE);
+            final ImageFile imageFile = this.getEditor().addFile(pathFile);
+            if (this.showIfMemoryIsInsufficient(imageFile.getMemoryUsage())) {
+                // the file doesn't fit, it's closed right away so the memory accounted stays the one actually in use
+                final int imageFileIndex = this.getEditor().getImageFiles().indexOf(imageFile);
+                this.getEditor().removeImageFile(imageFileIndex);
+                this.getEditor().removeOriginalImageFile(imageFileIndex);
             }
-            this.getEditor().addFile(pathFile);
-            this.getEditor().addFileToOriginalList(pathFile);
             if (this.getEditor().getAllImagesCounterSum() > 1) {
                 this.getMainDialog().setAutoAlignButtonEnabled(true);
             }
@@ -445,17 +445,22 @@ public class ImageAlignment implements OnMainDialogEventListener, OnAlignDialogE
 
     private void alignHandler(AlignBuilder builder) {
         builder.setTempImages(this.tempImages);
-        builder.init();
-        if (builder.check()) {
-            if (builder.getEvent().isKeepOriginal()) {
-                builder.alignKeepOriginal();
-            } else {
-                builder.align();
+        try {
+            builder.init();
+            if (builder.check()) {
+                if (builder.getEvent().isKeepOriginal()) {
+                    builder.alignKeepOriginal();
+                } else {
+                    builder.align();
+                }
+                builder.build();
+                this.alignDialog = builder.getAlignDialog();
+                this.tempImages = builder.getTempImages();
+                this.getMainDialog().setAutoAlignButtonEnabled(this.getEditor().getAllImagesCounterSum() > 1);
             }
-            builder.build();
-            this.alignDialog = builder.getAlignDialog();
-            this.tempImages = builder.getTempImages();
-            this.getMainDialog().setAutoAlignButtonEnabled(this.getEditor().getAllImagesCounterSum() > 1);
+        } finally {
+            // the stack is saved by build, what the builder still holds is not needed anymore
+            builder.dispose();
         }
     }
 
@@ -737,7 +742,7 @@ public class ImageAlignment implements OnMainDialogEventListener, OnAlignDialogE
         if (this.getPreviewDialog() != null && this.getPreviewDialog().isVisible()) {
             this.getPreviewDialog().drawRois();
         }
-        List<RoiManager> roiManagers = this.getEditor().getImageFiles().stream().flatMap(imageFile -> imageFile.getImages().stream()).map(SlideImage::getManager).collect(Collectors.toList());
+        List<RoiManager> roiManagers = this.getEditor().getImageFiles().stream().flatMap(imageFile -> imageFile.getRoiManagers().stream()).collect(Collectors.toList());
         // Get the number of rois added in each this.getEditor().getCurrentImage()(). If they are all the same (and at least one is added), we can enable the "align" functionality
         List<Integer> roisNumber = roiManagers.stream().map(roiManager -> roiManager.getRoisAsArray().length).collect(Collectors.toList());
         boolean alignButtonEnabled = roisNumber.get(0) >= LeastSquareImageTransformation.MINIMUM_ROI_NUMBER && this.getEditor().getAllImagesCounterSum() > 1 && roisNumber.stream().distinct().count() == 1;
@@ -763,10 +768,13 @@ public class ImageAlignment implements OnMainDialogEventListener, OnAlignDialogE
         this.loadingDialog = new LoadingDialog();
         this.getLoadingDialog().showDialog();
         try {
-            for (String filePath : filePaths) {
-                this.showIfMemoryIsInsufficient(filePath);
-            }
+            // the files are opened and validated in parallel, the memory is estimated by the same import processes
             this.editor = new ImagesEditor(filePaths);
+            if (this.showIfMemoryIsInsufficient(this.getEditor().getImageFiles().stream().mapToLong(ImageFile::getMemoryUsage).sum())) {
+                this.getEditor().dispose();
+                this.run();
+                return;
+            }
             this.editor.addPropertyChangeListener(this);
             this.getEditor().next();
             this.mainDialog = new MainDialog(this.getEditor().getCurrentImage(), this);
@@ -790,13 +798,17 @@ public class ImageAlignment implements OnMainDialogEventListener, OnAlignDialogE
         }
     }
 
-    private void showIfMemoryIsInsufficient(String pathFile) throws IOException {
-        long memory = ImageFile.estimateMemoryUsage(pathFile);
-        this.totalMemory += memory;
-        if (this.getTotalMemory() >= Runtime.getRuntime().maxMemory()) {
+    /**
+     * @param memory the memory estimated for the files that are being added
+     * @return if the files don't fit in the memory, in that case the message is shown and they're not accounted
+     */
+    private boolean showIfMemoryIsInsufficient(long memory) {
+        if (this.getTotalMemory() + memory >= Runtime.getRuntime().maxMemory()) {
             JOptionPane.showMessageDialog(null, INSUFFICIENT_MEMORY_MESSAGE, INSUFFICIENT_MEMORY_TITLE, JOptionPane.ERROR_MESSAGE);
-            this.run();
+            return true;
         }
+        this.totalMemory += memory;
+        return false;
     }
 
     /**
@@ -72,8 +72,9 @@ public class LeastSquareImageTransformation {
 
     private static List<Point> getPoints(SlideImage slideImage) {
         return Arrays.stream(slideImage.getManager().getRoisAsArray()).map(roi -> {
-            double oldX = roi.getRotationCenter().xpoints[0];
-            double oldY = roi.getRotationCenter().ypoints[0];
+            // from the editor coordinates to the ones of the image that is warped
+            double oldX = roi.getRotationCenter().xpoints[0] * slideImage.getEditorScaleX();
+            double oldY = roi.getRotationCenter().ypoints[0] * slideImage.getEditorScaleY();
             return new Point(new double[]{oldX, oldY});
         }).collect(Collectors.toList());
     }
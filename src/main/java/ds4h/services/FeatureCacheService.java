@@ -0,0 +1,193 @@
+package ds4h.services;
+
+import ds4h.builder.feature.Features;
+import ij.IJ;
+import org.opencv.core.Core;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.Optional;
+
+import static org.opencv.core.CvType.CV_32F;
+import static org.opencv.core.CvType.CV_8U;
+
+/**
+ * Keeps the keypoints and the descriptors of the planes on disk, inside the ImageJ temp directory, so running the automatic
+ * alignment again ( with another source image or model ) doesn't detect the features again.
+ * The features are found by a hash of the pixels the detector sees plus the parameters of the detector,
+ * so a plane changed or a different detector is always a miss. When the cache is over its size, the least recently used files are deleted.
+ */
+public class FeatureCacheService {
+    private static final String TEMP_PATH = "temp";
+    private static final String CACHE_DIRECTORY = "ds4h-features";
+    private static final String FEATURES_EXT = ".features";
+    private static final long MAXIMUM_CACHE_SIZE = 1L << 30; // 1 GB
+    // changes every time the layout of the files changes, so the old ones are never read
+    private static final int FORMAT_VERSION = 1;
+
+    private FeatureCacheService() {
+    }
+
+    /**
+     * @param image      the plane, exactly as it's given to the detector
+     * @param parameters the detector and descriptor parameters
+     * @return the key of the features of the plane
+     */
+    public static String getKey(Mat image, String parameters) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // the detectors of another OpenCV version may find other features
+            digest.update(String.format("%d;%s;%s;%d;%d;%d", FORMAT_VERSION, Core.VERSION, parameters, image.cols(), image.rows(), image.type()).getBytes(StandardCharsets.UTF_8));
+            final Mat continuousImage = image.isContinuous() ? image : image.clone();
+            final byte[] row = new byte[(int) (continuousImage.cols() * continuousImage.elemSize())];
+            // a row at a time, the whole plane as a java array would double its memory
+            for (int y = 0; y < continuousImage.rows(); y++) {
+                continuousImage.get(y, 0, row);
+                digest.update(row);
+            }
+            if (continuousImage != image) {
+                continuousImage.release();
+            }
+            final StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key the key of the features
+     * @return the features, if they're in the cache and readable
+     */
+    public static Optional<Features> load(String key) {
+        final File featuresFile = getFeaturesFile(key);
+        if (!featuresFile.isFile()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(featuresFile)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return Optional.empty();
+            }
+            final KeyPoint[] keyPoints = new KeyPoint[in.readInt()];
+            for (int i = 0; i < keyPoints.length; i++) {
+                keyPoints[i] = new KeyPoint(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(), in.readInt(), in.readInt());
+            }
+            final int rows = in.readInt();
+            final int cols = in.readInt();
+            final int type = in.readInt();
+            final Mat descriptors = new Mat(rows, cols, type);
+            if (!descriptors.empty() && type == CV_32F) {
+                final float[] data = new float[rows * cols];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = in.readFloat();
+                }
+                descriptors.put(0, 0, data);
+            } else if (!descriptors.empty()) {
+                final byte[] data = new byte[rows * cols];
+                in.readFully(data);
+                descriptors.put(0, 0, data);
+            }
+            // the last modified time is the last access time, that the eviction relies on
+            featuresFile.setLastModified(System.currentTimeMillis());
+            return Optional.of(new Features(new MatOfKeyPoint(keyPoints), descriptors));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Saves the features of a plane, then evicts the least recently used ones if the cache got too big.
+     * A failure is not an error, the features will simply be detected again next time
+     */
+    public static void save(String key, Features features) {
+        final Mat descriptors = features.getDescriptors();
+        if (descriptors.type() != CV_8U && descriptors.type() != CV_32F) {
+            return;
+        }
+        FileService.createDirectoryIfNotExist(getCacheDirectory().getPath());
+        final File featuresFile = getFeaturesFile(key);
+        // written aside and then renamed, so a worker never reads a file still being written
+        final File partialFile = new File(featuresFile.getPath() + "." + Thread.currentThread().getId());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partialFile)))) {
+            out.writeInt(FORMAT_VERSION);
+            final KeyPoint[] keyPoints = features.getKeyPoints().toArray();
+            out.writeInt(keyPoints.length);
+            for (KeyPoint keyPoint : keyPoints) {
+                out.writeFloat((float) keyPoint.pt.x);
+                out.writeFloat((float) keyPoint.pt.y);
+                out.writeFloat(keyPoint.size);
+                out.writeFloat(keyPoint.angle);
+                out.writeFloat(keyPoint.response);
+                out.writeInt(keyPoint.octave);
+                out.writeInt(keyPoint.class_id);
+            }
+            out.writeInt(descriptors.rows());
+            out.writeInt(descriptors.cols());
+            out.writeInt(descriptors.type());
+            if (!descriptors.empty() && descriptors.type() == CV_32F) {
+                final float[] data = new float[(int) descriptors.total()];
+                descriptors.get(0, 0, data);
+                for (float value : data) {
+                    out.writeFloat(value);
+                }
+            } else if (!descriptors.empty()) {
+                final byte[] data = new byte[(int) descriptors.total()];
+                descriptors.get(0, 0, data);
+                out.write(data);
+            }
+        } catch (IOException e) {
+            IJ.log("Feature cache: " + e.getMessage());
+            partialFile.delete();
+            return;
+        }
+        if (!partialFile.renameTo(featuresFile)) {
+            partialFile.delete();
+            return;
+        }
+        evict();
+    }
+
+    private static synchronized void evict() {
+        final File[] files = getCacheDirectory().listFiles(file -> file.isFile() && file.getName().endsWith(FEATURES_EXT));
+        if (files == null) {
+            return;
+        }
+        long cacheSize = Arrays.stream(files).mapToLong(File::length).sum();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (cacheSize <= MAXIMUM_CACHE_SIZE) {
+                return;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                cacheSize -= length;
+            }
+        }
+    }
+
+    private static File getFeaturesFile(String key) {
+        return new File(getCacheDirectory(), key + FEATURES_EXT);
+    }
+
+    private static File getCacheDirectory() {
+        return new File(Objects.requireNonNull(IJ.getDir(TEMP_PATH)), CACHE_DIRECTORY);
+    }
+}
@@ -1,12 +1,23 @@
 package ds4h.services;
 
 import ij.IJ;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
 import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Objects;
 
 public class ImportService {
+    private static final String TEMP_PATH = "temp";
+    private static final String MEMO_DIRECTORY = "ds4h-memo";
+    // the parsed metadata are always saved, even the ones of the files that were quick to parse
+    private static final long MEMO_MINIMUM_ELAPSED = 0;
+
     public static ImportProcess getProcessByFilePath(String filePath) throws IOException {
         final ImporterOptions options = new ImporterOptions();
         options.setId(filePath);
@@ -22,4 +33,23 @@ public class ImportService {
         }
         return process;
     }
+
+    /**
+     * Opens the file with a plain reader, set up like the base reader of {@link #getProcessByFilePath(String)}
+     * but without the import process: to be used when the metadata of the file are already known.
+     * The reader is memoized in the ImageJ temp directory, so from the second time on the metadata are loaded instead of parsed
+     */
+    public static IFormatReader getReaderByFilePath(String filePath) throws IOException, FormatException {
+        final File memoDirectory = new File(Objects.requireNonNull(IJ.getDir(TEMP_PATH)), MEMO_DIRECTORY);
+        FileService.createDirectoryIfNotExist(memoDirectory.getPath());
+        final Memoizer reader = new Memoizer(new ImageReader(), MEMO_MINIMUM_ELAPSED, memoDirectory);
+        reader.setGroupFiles(false);
+        try {
+            reader.setId(filePath);
+        } catch (IOException | FormatException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
 }
@@ -0,0 +1,147 @@
+package ds4h.services;
+
+import ij.IJ;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Keeps the thumbnails of the opened files on disk, inside the ImageJ temp directory, so they survive a restart.
+ * The thumbnails are found by a fingerprint of the content of the file, so a file moved or renamed is still a hit.
+ * When the cache is over its size, the least recently used thumbnails are deleted.
+ */
+public class ThumbnailCacheService {
+    private static final String TEMP_PATH = "temp";
+    private static final String CACHE_DIRECTORY = "ds4h-thumbnails";
+    private static final String THUMB_FORMAT = "png";
+    private static final long MAXIMUM_CACHE_SIZE = 256L << 20; // 256 MB
+    // the fingerprint is made of the size of the file, its first and its last MB
+    private static final int FINGERPRINT_SAMPLE_SIZE = 1 << 20;
+
+    private ThumbnailCacheService() {
+    }
+
+    /**
+     * @param pathFile the path of the image file
+     * @return a fingerprint of the content of the file, that doesn't depend on its path
+     */
+    public static String getFingerprint(String pathFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(pathFile, "r")) {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final long length = file.length();
+            digest.update(Long.toString(length).getBytes(StandardCharsets.UTF_8));
+            final byte[] sample = new byte[(int) Math.min(FINGERPRINT_SAMPLE_SIZE, length)];
+            file.readFully(sample);
+            digest.update(sample);
+            file.seek(length - sample.length);
+            file.readFully(sample);
+            digest.update(sample);
+            final StringBuilder fingerprint = new StringBuilder();
+            for (byte b : digest.digest()) {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param fingerprint the fingerprint of the file
+     * @param series      the series the thumbnails were made from
+     * @param count       how many thumbnails the file has
+     * @return the thumbnails, only if all of them are in the cache
+     */
+    public static Optional<List<BufferedImage>> load(String fingerprint, int series, int count) {
+        final List<BufferedImage> thumbs = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        for (int index = 0; index < count; index++) {
+            final File thumbFile = getThumbFile(fingerprint, series, index);
+            if (!thumbFile.isFile()) {
+                return Optional.empty();
+            }
+            try {
+                final BufferedImage thumb = ImageIO.read(thumbFile);
+                if (thumb == null) {
+                    return Optional.empty();
+                }
+                thumbs.add(thumb);
+                // the last modified time is the last access time, that the eviction relies on
+                thumbFile.setLastModified(now);
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(thumbs);
+    }
+
+    /**
+     * Saves the thumbnails of a file, then evicts the least recently used ones if the cache got too big.
+     * A failure is not an error, the thumbnails will simply be created again next time
+     */
+    public static void save(String fingerprint, int series, List<BufferedImage> thumbs) {
+        FileService.createDirectoryIfNotExist(getCacheDirectory().getPath());
+        for (int index = 0; index < thumbs.size(); index++) {
+            try {
+                ImageIO.write(toRGB(thumbs.get(index)), THUMB_FORMAT, getThumbFile(fingerprint, series, index));
+            } catch (IOException e) {
+                IJ.log("Thumbnail cache: " + e.getMessage());
+                return;
+            }
+        }
+        evict();
+    }
+
+    private static void evict() {
+        final File[] files = getCacheDirectory().listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        long cacheSize = Arrays.stream(files).mapToLong(File::length).sum();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (cacheSize <= MAXIMUM_CACHE_SIZE) {
+                return;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                cacheSize -= length;
+            }
+        }
+    }
+
+    /**
+     * The thumbnails of some formats ( e.g. 16 bit ones ) can't be written as they are, they are stored as they're displayed
+     */
+    private static BufferedImage toRGB(BufferedImage thumb) {
+        if (thumb.getType() == BufferedImage.TYPE_INT_RGB) {
+            return thumb;
+        }
+        final BufferedImage rgbThumb = new BufferedImage(thumb.getWidth(), thumb.getHeight(), BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = rgbThumb.createGraphics();
+        graphics.drawImage(thumb, 0, 0, null);
+        graphics.dispose();
+        return rgbThumb;
+    }
+
+    private static File getThumbFile(String fingerprint, int series, int index) {
+        return new File(getCacheDirectory(), String.format("%s-%d-%d.%s", fingerprint, series, index, THUMB_FORMAT));
+    }
+
+    private static File getCacheDirectory() {
+        return new File(Objects.requireNonNull(IJ.getDir(TEMP_PATH)), CACHE_DIRECTORY);
+    }
+}
@@ -0,0 +1,69 @@
+package ds4h.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Samples, on a background thread, an estimate of the memory of the process outside the Java heap ( OpenCV allocates all the Mats there )
+ * and keeps the peak. It's not a measurement: the estimate is the resident size minus the heap committed by the JVM,
+ * so it includes the code, the thread stacks and the other native libraries, and it misses the committed heap pages that aren't resident.
+ * It's only available on Linux, elsewhere the peak is -1.
+ */
+public class NativeMemoryMonitor {
+    private static final Path STATM = Paths.get("/proc/self/statm");
+    private static final long PAGE_SIZE = 4096;
+    private static final long SAMPLING_MILLIS = 50;
+    private volatile boolean running;
+    private volatile long peak = -1;
+    private Thread sampler;
+
+    public void start() {
+        if (!Files.isReadable(STATM)) {
+            return;
+        }
+        this.running = true;
+        this.sampler = new Thread(() -> {
+            while (this.running) {
+                this.sample();
+                try {
+                    Thread.sleep(SAMPLING_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "ds4h-native-memory");
+        this.sampler.setDaemon(true);
+        this.sampler.start();
+    }
+
+    /**
+     * @return the peak of the estimate since the start, in bytes; -1 if it couldn't be estimated
+     */
+    public long stop() {
+        this.running = false;
+        if (this.sampler != null) {
+            this.sampler.interrupt();
+            try {
+                this.sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // the last stage may have ended between two samples
+            this.sample();
+        }
+        return this.peak;
+    }
+
+    private void sample() {
+        try {
+            final String[] fields = new String(Files.readAllBytes(STATM), StandardCharsets.US_ASCII).trim().split("\\s+");
+            final long nativeMemory = Long.parseLong(fields[1]) * PAGE_SIZE - Runtime.getRuntime().totalMemory();
+            this.peak = Math.max(this.peak, nativeMemory);
+        } catch (IOException | RuntimeException e) {
+            // a missed sample only makes the peak less accurate
+        }
+    }
+}